@@ -25,6 +25,26 @@ public class BluetoothManager {
     private String remoteAddress = "10.0.2.2:6000"; // TCP: "host:port", BT: "MAC_ADDRESS"
     
     private boolean isActive = false; // The Master Switch
+    
+    // All sends go through one thread so frames reach the pipe in the order they were queued
+    // (the string tables below depend on it)
+    private final java.util.concurrent.ExecutorService sendExecutor =
+        java.util.concurrent.Executors.newSingleThreadExecutor();
+    
+    // Per-connection string dictionaries: outgoing is only touched on the send thread,
+    // incoming only on the listener thread
+    private final SessionStringTable outgoingStrings = new SessionStringTable();
+    private final SessionStringTable incomingStrings = new SessionStringTable();
+    private int framesSinceStatsLog = 0;
+    private final java.util.concurrent.CopyOnWriteArrayList<Runnable> sessionStartedListeners =
+        new java.util.concurrent.CopyOnWriteArrayList<>();
+    private static final int STATS_LOG_INTERVAL = 50;
+
+    // Low-priority frames wait here until no regular frame is queued on the send thread
+    private final java.util.ArrayDeque<BackgroundFrame> backgroundFrames = new java.util.ArrayDeque<>();
+    private final java.util.concurrent.atomic.AtomicInteger pendingFrames =
+        new java.util.concurrent.atomic.AtomicInteger();
+    private static final int MAX_BACKGROUND_FRAMES = 8;
 
 public void setTransport(TransportConnection transport) {
         this.transport = transport;
@@ -71,23 +91,9 @@ public void setTransport(TransportConnection transport) {
             return;
         }
 
-        new Thread(() -> {
+        sendExecutor.execute(() -> {
             try {
-                // Initialize transport if needed
-                if (transport == null) {
-                    if (useTCP) {
-                        transport = new TCPConnection();
-                    } else {
-                        transport = new BluetoothConnection();
-                    }
-                    transport.setIncomingMessageListener(phoneResponseListener);
-                }
-                
-                // Establish connection if not connected
-                if (!transport.isConnected()) {
-                    Log.d("RideBridge", "SENDER: Establishing connection to " + remoteAddress);
-                    transport.connect(remoteAddress);
-                }
+                ensureConnected();
                 
                 // Send message
                 String logMessage = message.replaceAll("\"albumArt\":\"[^\"]*\"", "\"albumArt\":\"[base64...]\"");
@@ -100,7 +106,194 @@ public void setTransport(TransportConnection transport) {
                 Log.e("RideBridge", "SENDER: Send Error: " + e.getMessage());
                 transport = null;
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Send a JSON frame, replacing repeated strings with session dictionary IDs.
+     * The caller must not touch the frame after handing it over.
+     */
+    public void sendFrame(org.json.JSONObject frame, OnMessageReceived listener) {
+        sendFrame(frame, listener, null);
+    }
+
+    /**
+     * As above, and tell result whether the frame was written to the link (false right away
+     * if the service is not active). For senders that keep a frame until it is delivered.
+     */
+    public void sendFrame(org.json.JSONObject frame, OnMessageReceived listener, SendResultListener result) {
+        if (listener != null) {
+            this.phoneResponseListener = listener;
+        }
+
+        if (!isActive) {
+            android.util.Log.d("RideBridge", "SENDER: Service not started. Blocking message.");
+            if (result != null) {
+                result.onSendResult(false);
+            }
+            return;
+        }
+
+        pendingFrames.incrementAndGet();
+        sendExecutor.execute(() -> {
+            boolean sent = false;
+            try {
+                pushFrame(frame);
+                sent = true;
+            } catch (Exception e) {
+                Log.e("RideBridge", "SENDER: Send Error: " + e.getMessage());
+                transport = null;
+            } finally {
+                if (result != null) {
+                    result.onSendResult(sent);
+                }
+                if (pendingFrames.decrementAndGet() == 0) {
+                    drainBackgroundFrames();
+                }
+            }
+        });
+    }
+
+    private static class BackgroundFrame {
+        final org.json.JSONObject frame;
+        final SendResultListener result;
+
+        BackgroundFrame(org.json.JSONObject frame, SendResultListener result) {
+            this.frame = frame;
+            this.result = result;
+        }
+
+        void report(boolean sent) {
+            if (result != null) {
+                result.onSendResult(sent);
+            }
+        }
+    }
+
+    /**
+     * Send a frame at low priority: it only goes out while no regular frame is waiting,
+     * and the oldest is dropped if too many pile up. For speculative data such as prefetch.
+     */
+    public void sendBackgroundFrame(org.json.JSONObject frame) {
+        sendBackgroundFrame(frame, null);
+    }
+
+    /**
+     * As above, and tell result whether the frame was written; false also when it was
+     * dropped (queue full, service not active), so the caller can offer it again later
+     */
+    public void sendBackgroundFrame(org.json.JSONObject frame, SendResultListener result) {
+        BackgroundFrame entry = new BackgroundFrame(frame, result);
+        if (!isActive) {
+            entry.report(false);
+            return;
+        }
+
+        BackgroundFrame dropped = null;
+        synchronized (backgroundFrames) {
+            if (backgroundFrames.size() >= MAX_BACKGROUND_FRAMES) {
+                dropped = backgroundFrames.pollFirst();
+            }
+            backgroundFrames.addLast(entry);
+        }
+        if (dropped != null) {
+            dropped.report(false);
+        }
+        sendExecutor.execute(this::drainBackgroundFrames);
+    }
+
+    // Runs on the send thread; yields as soon as a regular frame is queued
+    private void drainBackgroundFrames() {
+        while (pendingFrames.get() == 0) {
+            BackgroundFrame entry;
+            synchronized (backgroundFrames) {
+                entry = backgroundFrames.pollFirst();
+            }
+            if (entry == null) {
+                return;
+            }
+            try {
+                pushFrame(entry.frame);
+            } catch (Exception e) {
+                Log.e("RideBridge", "SENDER: Background send error: " + e.getMessage());
+                transport = null;
+                entry.report(false);
+                return;
+            }
+            entry.report(true);
+        }
+    }
+
+    // Runs on the send thread
+    private void pushFrame(org.json.JSONObject frame) throws IOException, org.json.JSONException {
+        ensureConnected();
+
+        outgoingStrings.encode(frame);
+        String message = frame.toString();
+
+        String logMessage = message.replaceAll("\"albumArt\":\"[^\"]*\"", "\"albumArt\":\"[base64...]\"");
+        Log.d("RideBridge", "SENDER: Pushing frame: " + logMessage);
+
+        transport.sendMessage(message);
+
+        if (++framesSinceStatsLog >= STATS_LOG_INTERVAL) {
+            framesSinceStatsLog = 0;
+            Log.d("RideBridge", "SENDER: String table stats: " + outgoingStrings.getStats());
+        }
+    }
+
+    /**
+     * Forget all outgoing dictionary entries, e.g. when the receiver reports it lost track.
+     * Runs on the send thread so it is ordered with the frames around it.
+     */
+    public void resetOutgoingStrings() {
+        sendExecutor.execute(() -> {
+            outgoingStrings.reset();
+            Log.d("RideBridge", "SENDER: Outgoing string table reset");
+        });
+    }
+
+    /**
+     * Called on the send thread each time a new connection to the receiver is made,
+     * so senders can re-send full state or flush what waited for the link
+     */
+    public void addSessionStartedListener(Runnable listener) {
+        sessionStartedListeners.addIfAbsent(listener);
+    }
+
+    public void removeSessionStartedListener(Runnable listener) {
+        sessionStartedListeners.remove(listener);
+    }
+
+    /**
+     * Dictionary for frames received on the current connection (listener thread only)
+     */
+    public SessionStringTable getIncomingStrings() {
+        return incomingStrings;
+    }
+
+    // Runs on the send thread
+    private void ensureConnected() throws IOException {
+        // Initialize transport if needed
+        if (transport == null) {
+            if (useTCP) {
+                transport = new TCPConnection();
+            } else {
+                transport = new BluetoothConnection();
+            }
+            transport.setIncomingMessageListener(phoneResponseListener);
+        }
+        
+        // Establish connection if not connected
+        if (!transport.isConnected()) {
+            Log.d("RideBridge", "SENDER: Establishing connection to " + remoteAddress);
+            transport.connect(remoteAddress);
+            // New session: the receiver starts with an empty table
+            outgoingStrings.reset();
+            for (Runnable listener : sessionStartedListeners) {
+                listener.run();
+            }
+        }
     }
 
     public interface MessageListener {
@@ -112,6 +305,11 @@ public void setTransport(TransportConnection transport) {
         void onReceived(String data);
     }
 
+    /** Called on the send thread */
+    public interface SendResultListener {
+        void onSendResult(boolean sent);
+    }
+
     public void startEmulatorListener(OnMessageReceived listener, String roleName) {
         new Thread(() -> {
             try {
@@ -126,6 +324,9 @@ public void setTransport(TransportConnection transport) {
                 while (true) {
                     java.net.Socket clientSocket = serverSocket.accept();
                     Log.d("RideBridge", "RECEIVER: Phone connected.");
+                    
+                    // New session: the sender starts with an empty table
+                    incomingStrings.reset();
 
                     // Initialize the return path (Tablet -> Phone)
                     tabletToPhoneOut = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())), true);
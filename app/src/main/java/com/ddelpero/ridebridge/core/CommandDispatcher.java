@@ -0,0 +1,36 @@
+package com.ddelpero.ridebridge.core;
+
+/**
+ * Routes parsed RemoteCommands to handlers through a table indexed by opcode.
+ * A single scratch command is reused for every line, so dispatching does not allocate.
+ */
+public class CommandDispatcher {
+
+    public interface Handler {
+        void handle(RemoteCommand command);
+    }
+
+    private final Handler[] handlers = new Handler[RemoteCommand.OP_COUNT];
+    private final RemoteCommand scratch = new RemoteCommand();
+
+    public CommandDispatcher register(int opcode, Handler handler) {
+        handlers[opcode] = handler;
+        return this;
+    }
+
+    /**
+     * Parse a received line and run its handler
+     * @return false if the line was not a known command or no handler is registered
+     */
+    public synchronized boolean dispatch(CharSequence line) {
+        if (!scratch.parse(line)) {
+            return false;
+        }
+        Handler handler = handlers[scratch.opcode];
+        if (handler == null) {
+            return false;
+        }
+        handler.handle(scratch);
+        return true;
+    }
+}
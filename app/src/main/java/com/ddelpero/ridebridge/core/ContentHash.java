@@ -0,0 +1,74 @@
+package com.ddelpero.ridebridge.core;
+
+/**
+ * 64-bit FNV-1a content hash, used to name album art by its encoded bytes so both ends can
+ * refer to a cover without sending it. Not cryptographic; collisions are only a concern for
+ * deliberately crafted input.
+ */
+public final class ContentHash {
+
+    /** Never produced for real content by convention; means "no art" */
+    public static final long NONE = 0;
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private ContentHash() {
+    }
+
+    public static long of(byte[] data) {
+        return of(data, 0, data.length);
+    }
+
+    public static long of(byte[] data, int offset, int length) {
+        long hash = OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= PRIME;
+        }
+        return hash == NONE ? 1 : hash;
+    }
+
+    /**
+     * Hash of text content, over the UTF-16 units of each part; null parts are skipped
+     */
+    public static long ofText(CharSequence... parts) {
+        long hash = OFFSET_BASIS;
+        for (CharSequence part : parts) {
+            if (part == null) continue;
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                hash ^= c & 0xff;
+                hash *= PRIME;
+                hash ^= c >>> 8;
+                hash *= PRIME;
+            }
+            // Separator, so ("ab", "c") and ("a", "bc") differ
+            hash ^= 0xff;
+            hash *= PRIME;
+        }
+        return hash == NONE ? 1 : hash;
+    }
+
+    /** Fixed-width hex form, used in frames and file names */
+    public static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+
+    /**
+     * Parse toHex output; returns NONE for anything malformed
+     */
+    public static long fromHex(String hex) {
+        if (hex == null || hex.isEmpty() || hex.length() > 16) return NONE;
+        try {
+            return Long.parseUnsignedLong(hex, 16);
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+}
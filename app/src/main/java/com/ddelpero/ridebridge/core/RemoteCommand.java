@@ -0,0 +1,202 @@
+package com.ddelpero.ridebridge.core;
+
+/**
+ * Typed remote command sent from the tablet to the phone: a numeric opcode plus an optional
+ * numeric or text argument. The wire format is still the plain text line the transports
+ * carry ("PLAY", "SEEK:12345", "ICON:com.whatsapp"), but parsing walks the received
+ * characters in place, so a command can be decoded into a reused instance without
+ * allocating. A text argument is kept as offsets into the parsed line; argText() copies it
+ * out when a handler needs to keep it.
+ *
+ * To add a command, add an opcode, give it a wire name in NAMES (and mark it in HAS_ARG if
+ * it carries a value, and in TEXT_ARG if that value is text), then register a handler for it
+ * with a CommandDispatcher.
+ */
+public final class RemoteCommand {
+
+    public static final int OP_NONE = 0;
+    public static final int OP_PLAY = 1;
+    public static final int OP_PAUSE = 2;
+    public static final int OP_NEXT = 3;
+    public static final int OP_PREV = 4;
+    public static final int OP_SEEK = 5;
+    public static final int OP_VOICE = 6;
+    /** Tablet lost track of the session string table; phone should start a fresh one */
+    public static final int OP_RESYNC = 7;
+    /** Tablet has no cached art for the hash in the argument; phone should send the bytes */
+    public static final int OP_ART_MISS = 8;
+    /** Tablet wants the icon of the app package in the (text) argument */
+    public static final int OP_ICON = 9;
+
+    /** Number of opcodes, used to size dispatch tables */
+    public static final int OP_COUNT = 10;
+
+    private static final char ARG_SEPARATOR = ':';
+
+    // Wire names, indexed by opcode
+    private static final String[] NAMES = {
+        null,       // OP_NONE
+        "PLAY",
+        "PAUSE",
+        "NEXT",
+        "PREV",
+        "SEEK",
+        "VOICE",
+        "RESYNC",
+        "ART_MISS",
+        "ICON"
+    };
+
+    // Whether the opcode requires an argument, indexed by opcode
+    private static final boolean[] HAS_ARG = {
+        false,      // OP_NONE
+        false,      // PLAY
+        false,      // PAUSE
+        false,      // NEXT
+        false,      // PREV
+        true,       // SEEK
+        false,      // VOICE
+        false,      // RESYNC
+        true,       // ART_MISS
+        true        // ICON
+    };
+
+    // Whether the argument is text rather than a number, indexed by opcode
+    private static final boolean[] TEXT_ARG = {
+        false, false, false, false, false, false, false, false, false,
+        true        // ICON
+    };
+
+    public int opcode = OP_NONE;
+    public long arg;
+    // Text argument: [argStart, argEnd) of the parsed line
+    public int argStart;
+    public int argEnd;
+    private CharSequence line;
+
+    /**
+     * Parse a command line into this instance. Leaves the instance as OP_NONE and returns
+     * false if the line is not a known, well-formed command.
+     */
+    public boolean parse(CharSequence line) {
+        opcode = OP_NONE;
+        arg = 0;
+        argStart = 0;
+        argEnd = 0;
+        this.line = line;
+        if (line == null) return false;
+
+        // Ignore trailing whitespace / carriage returns left by the line reader
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        int nameEnd = 0;
+        while (nameEnd < end && line.charAt(nameEnd) != ARG_SEPARATOR) {
+            nameEnd++;
+        }
+
+        int op = lookup(line, nameEnd);
+        if (op == OP_NONE) return false;
+
+        boolean hasArg = nameEnd < end;
+        if (hasArg != HAS_ARG[op]) return false;
+
+        if (hasArg && TEXT_ARG[op]) {
+            argStart = nameEnd + 1;
+            argEnd = end;
+            if (argStart >= argEnd) return false;
+        } else if (hasArg) {
+            int i = nameEnd + 1;
+            boolean negative = i < end && line.charAt(i) == '-';
+            if (negative) i++;
+            if (i >= end) return false;
+
+            // Accumulated negatively, like Long.parseLong, so Long.MIN_VALUE fits too;
+            // anything out of range is rejected rather than wrapping
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long value = 0;
+            for (; i < end; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') return false;
+                int digit = c - '0';
+                if (value < (limit + digit) / 10) return false;
+                value = value * 10 - digit;
+            }
+            arg = negative ? value : -value;
+        }
+
+        opcode = op;
+        return true;
+    }
+
+    /**
+     * The text argument as a String; allocates, so only call it to keep the value
+     */
+    public String argText() {
+        return line != null ? line.subSequence(argStart, argEnd).toString() : "";
+    }
+
+    private static int lookup(CharSequence line, int nameEnd) {
+        for (int op = 1; op < OP_COUNT; op++) {
+            String name = NAMES[op];
+            if (name.length() != nameEnd) continue;
+
+            boolean match = true;
+            for (int i = 0; i < nameEnd; i++) {
+                if (name.charAt(i) != line.charAt(i)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) return op;
+        }
+        return OP_NONE;
+    }
+
+    /**
+     * Resolve a bare command name (as used by widget intents) to its opcode
+     */
+    public static int opcodeOf(String name) {
+        if (name == null) return OP_NONE;
+        for (int op = 1; op < OP_COUNT; op++) {
+            if (NAMES[op].equals(name)) return op;
+        }
+        return OP_NONE;
+    }
+
+    public static String nameOf(int opcode) {
+        return (opcode > OP_NONE && opcode < OP_COUNT) ? NAMES[opcode] : "NONE";
+    }
+
+    /**
+     * Build the wire line for a command
+     */
+    public static String encode(int opcode, long arg) {
+        if (opcode <= OP_NONE || opcode >= OP_COUNT) {
+            throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+        if (TEXT_ARG[opcode]) {
+            throw new IllegalArgumentException(NAMES[opcode] + " takes a text argument");
+        }
+        return HAS_ARG[opcode] ? NAMES[opcode] + ARG_SEPARATOR + arg : NAMES[opcode];
+    }
+
+    /**
+     * Build the wire line for a command with a text argument; the text must not contain
+     * line breaks
+     */
+    public static String encode(int opcode, String textArg) {
+        if (opcode <= OP_NONE || opcode >= OP_COUNT || !TEXT_ARG[opcode]) {
+            throw new IllegalArgumentException("Not a text command: " + opcode);
+        }
+        return NAMES[opcode] + ARG_SEPARATOR + textArg;
+    }
+
+    @Override
+    public String toString() {
+        if (opcode == OP_NONE) return nameOf(opcode);
+        return TEXT_ARG[opcode] ? encode(opcode, argText()) : encode(opcode, arg);
+    }
+}
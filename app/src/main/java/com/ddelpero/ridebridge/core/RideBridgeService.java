@@ -12,8 +12,11 @@ import androidx.lifecycle.MutableLiveData;
 
 import com.ddelpero.ridebridge.R;
 import com.ddelpero.ridebridge.display.DisplayController;
+import com.ddelpero.ridebridge.notifications.NotificationData;
+import com.ddelpero.ridebridge.notifications.NotificationHandoff;
+import com.ddelpero.ridebridge.notifications.NotificationOutbox;
 import com.ddelpero.ridebridge.source.SourceController;
-import com.ddelpero.ridebridge.widget.RideBridgeWidgetProvider;
+import com.ddelpero.ridebridge.widget.WidgetRenderer;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 
@@ -34,10 +37,14 @@ public class RideBridgeService extends Service {
     // Widget command receiver
     private BroadcastReceiver widgetCommandReceiver;
     
+    // Notifications from RideBridgeNotificationListener, handed over in-process
+    private final NotificationHandoff.Sink notificationSink = this::forwardNotificationViaBluetooth;
+    // ...and kept until they reach the tablet
+    private NotificationOutbox notificationOutbox;
+    
     // LiveData for UI observation
     private MutableLiveData<String> statusLiveData = new MutableLiveData<>();
     private MutableLiveData<String> logLiveData = new MutableLiveData<>();
-    private MutableLiveData<MediaState> mediaStateLiveData = new MutableLiveData<>();
     private MutableLiveData<ConnectionManager.ConnectionStatus> connectionStatusLiveData = new MutableLiveData<>();
     
     // Keep a buffer of recent logs for new observers
@@ -98,28 +105,6 @@ public class RideBridgeService extends Service {
         logLiveData.postValue(sb.toString());
     }
     
-    // State class for media information
-    public static class MediaState {
-        public String artist;
-        public String track;
-        public boolean isPlaying;
-        public android.graphics.Bitmap albumArt;
-        public long position;
-        public long duration;
-        public float playbackSpeed;
-        
-        public MediaState(String artist, String track, boolean isPlaying, 
-                         android.graphics.Bitmap albumArt, long position, long duration, float speed) {
-            this.artist = artist;
-            this.track = track;
-            this.isPlaying = isPlaying;
-            this.albumArt = albumArt;
-            this.position = position;
-            this.duration = duration;
-            this.playbackSpeed = speed;
-        }
-    }
-    
     @Override
     public void onCreate() {
         super.onCreate();
@@ -143,43 +128,21 @@ public class RideBridgeService extends Service {
                     String command = intent.getStringExtra("command");
                     log("SERVICE: Widget command received via broadcast: " + command);
                     handleWidgetCommand(command);
-                } else if ("com.ddelpero.ridebridge.FORWARD_NOTIFICATION".equals(intent.getAction())) {
-                    String appPackage = intent.getStringExtra("appPackage");
-                    String appName = intent.getStringExtra("appName");
-                    String sender = intent.getStringExtra("sender");
-                    String message = intent.getStringExtra("message");
-                    long timestamp = intent.getLongExtra("timestamp", 0);
-                    
-                    log("SERVICE: Notification received from " + appName);
-                    forwardNotificationViaBluetooth(appPackage, appName, sender, message, timestamp);
                 }
             }
         };
         
         android.content.IntentFilter filter = new android.content.IntentFilter("com.ddelpero.ridebridge.WIDGET_COMMAND");
-        filter.addAction("com.ddelpero.ridebridge.FORWARD_NOTIFICATION");
         registerReceiver(widgetCommandReceiver, filter, Context.RECEIVER_EXPORTED);
+        
+        notificationOutbox = new NotificationOutbox(this, bluetoothManager);
+        NotificationHandoff.getInstance().setSink(notificationSink);
     }
     
-    private void forwardNotificationViaBluetooth(String appPackage, String appName, String sender, String message, long timestamp) {
-        try {
-            org.json.JSONObject json = new org.json.JSONObject();
-            json.put("type", "notification");
-            json.put("appPackage", appPackage);
-            json.put("appName", appName);
-            json.put("sender", sender);
-            json.put("message", message);
-            json.put("timestamp", timestamp);
-            
-            if (bluetoothManager != null) {
-                log("SERVICE: Sending notification via Bluetooth: " + appName);
-                bluetoothManager.sendMessage(json.toString(), null);
-            } else {
-                log("SERVICE: BluetoothManager not initialized, can't send notification");
-            }
-        } catch (Exception e) {
-            log("SERVICE: Error sending notification: " + e.getMessage());
-        }
+    private void forwardNotificationViaBluetooth(NotificationData data) {
+        // Sent from the outbox, which holds it through link dropouts
+        log("SERVICE: Queueing notification " + data.op + " for Bluetooth: " + data.appName);
+        notificationOutbox.enqueue(data);
     }
     
     @Override
@@ -253,31 +216,14 @@ public class RideBridgeService extends Service {
             return;
         }
         
-        log("SERVICE: Sending command to DisplayController: " + command);
-        switch (command) {
-            case "PLAY":
-                log("SERVICE: Calling displayController.sendPlayCommand()");
-                displayController.sendPlayCommand();
-                break;
-            case "PAUSE":
-                log("SERVICE: Calling displayController.sendPauseCommand()");
-                displayController.sendPauseCommand();
-                break;
-            case "NEXT":
-                log("SERVICE: Calling displayController.sendNextCommand()");
-                displayController.sendNextCommand();
-                break;
-            case "PREV":
-                log("SERVICE: Calling displayController.sendPreviousCommand()");
-                displayController.sendPreviousCommand();
-                break;
-            case "VOICE":
-                log("SERVICE: Calling displayController.sendVoiceCommand()");
-                displayController.sendVoiceCommand();
-                break;
-            default:
-                log("SERVICE: Unknown command: " + command);
+        int opcode = RemoteCommand.opcodeOf(command);
+        if (opcode == RemoteCommand.OP_NONE) {
+            log("SERVICE: Unknown command: " + command);
+            return;
         }
+        
+        log("SERVICE: Sending command to DisplayController: " + command);
+        displayController.sendCommand(opcode, 0);
     }
     
     private void startPhoneMode() {
@@ -317,19 +263,8 @@ public class RideBridgeService extends Service {
         // Create and start display controller
         displayController = new DisplayController(this, bluetoothManager);
         
-        // Listen for incoming media data
-        // displayController.setDisplayDataListener(mediaData -> {
-        //     // Update LiveData for UI observation (use postValue for background thread)
-        //     mediaStateLiveData.postValue(new MediaState(
-        //         mediaData.artist,
-        //         mediaData.track,
-        //         mediaData.isPlaying,
-        //         mediaData.albumArt,
-        //         mediaData.position,
-        //         mediaData.duration,
-        //         mediaData.playbackSpeed
-        //     ));
-        // });
+        // Media state reaches the UI through MediaStateStore; the widget subscribes here
+        WidgetRenderer.getInstance(this).attach();
         
         // Set listener to also get raw JSON data
         displayController.setRawDataListener(rawJson -> {
@@ -339,9 +274,18 @@ public class RideBridgeService extends Service {
         });
         
         // Set notification listener to show system notifications
-        displayController.setNotificationListener(notification -> {
-            showSystemNotification(notification);
-            log("SERVICE: Showing system notification: " + notification.appName);
+        displayController.setNotificationListener(new DisplayController.OnNotificationReceived() {
+            @Override
+            public void onNotificationReceived(NotificationData notification) {
+                showSystemNotification(notification);
+                log("SERVICE: Showing system notification: " + notification.appName);
+            }
+            
+            @Override
+            public void onNotificationRemoved(String key) {
+                cancelSystemNotification(key);
+                log("SERVICE: Withdrew system notification");
+            }
         });
         
         // Start listening in background thread (blocking call)
@@ -350,7 +294,18 @@ public class RideBridgeService extends Service {
         }).start();
     }
     
-    private void showSystemNotification(com.ddelpero.ridebridge.notifications.NotificationData notification) {
+    // Notifications from the phone keep one id per key, so updates replace them in place
+    private static int systemNotificationId(String key) {
+        return key != null ? key.hashCode() : (int) System.currentTimeMillis();
+    }
+    
+    private void cancelSystemNotification(String key) {
+        android.app.NotificationManager notificationManager = 
+            (android.app.NotificationManager) getSystemService(android.content.Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(systemNotificationId(key));
+    }
+    
+    private void showSystemNotification(NotificationData notification) {
         // Check notification permission (Android 13+)
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.TIRAMISU) {
             if (androidx.core.content.ContextCompat.checkSelfPermission(
@@ -381,18 +336,23 @@ public class RideBridgeService extends Service {
                 .setContentText(notification.message)
                 .setSubText(notification.appName)
                 .setAutoCancel(true)
+                .setNumber(notification.count)
                 .setPriority(androidx.core.app.NotificationCompat.PRIORITY_HIGH)
                 .setCategory(androidx.core.app.NotificationCompat.CATEGORY_MESSAGE);
         
         android.app.NotificationManager notificationManager = 
             (android.app.NotificationManager) getSystemService(android.content.Context.NOTIFICATION_SERVICE);
-        notificationManager.notify((int) System.currentTimeMillis(), builder.build());
+        notificationManager.notify(systemNotificationId(notification.key), builder.build());
     }
     
     @Override
     public void onDestroy() {
         log("SERVICE: onDestroy called");
         
+        // Without a sink the listener drops notifications
+        NotificationHandoff.getInstance().clearSink(notificationSink);
+        notificationOutbox.close();
+        
         // Cleanup connection manager
         if (connectionManager != null) {
             connectionManager.cleanup();
@@ -411,6 +371,10 @@ public class RideBridgeService extends Service {
         if (sourceController != null) {
             sourceController.stop();
         }
+        if (displayController != null) {
+            WidgetRenderer.getInstance(this).detach();
+            displayController.stop();
+        }
         if (bluetoothManager != null) {
             bluetoothManager.setServiceActive(false);
         }
@@ -437,17 +401,6 @@ public class RideBridgeService extends Service {
         return logLiveData;
     }
     
-    public LiveData<MediaState> getMediaStateLiveData() {
-        return mediaStateLiveData;
-    }
-    
-    public void updateWidget(DisplayController.MediaData mediaData) {
-        if (mediaData == null) return;
-        
-        log("SERVICE: Updating widget with track=" + mediaData.track);
-        RideBridgeWidgetProvider.updateWidget(this, mediaData);
-    }
-    
     public void switchMode(boolean tabletMode) {
         log("SERVICE: Switching to " + (tabletMode ? "TABLET" : "PHONE") + " mode");
         
@@ -457,6 +410,8 @@ public class RideBridgeService extends Service {
             sourceController = null;
         }
         if (displayController != null) {
+            WidgetRenderer.getInstance(this).detach();
+            displayController.stop();
             displayController = null;
         }
         
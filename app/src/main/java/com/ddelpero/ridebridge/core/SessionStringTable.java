@@ -0,0 +1,127 @@
+package com.ddelpero.ridebridge.core;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-connection dictionary for strings that repeat across frames (artist, track, app names,
+ * notification keys).
+ *
+ * The first time a value is sent it is assigned an ID and the frame carries both the value and
+ * the ID ("artist" + "artist#"). Later frames carry only the ID ("artist#"). The sender evicts the
+ * least recently used entry when the table is full and reuses its ID; since a reused ID is always
+ * re-defined in the frame that reuses it, the receiver just overwrites its slot.
+ *
+ * Each end owns one instance: the sender calls encode() and the receiver calls decode(), both from
+ * a single thread, in frame order. Both sides reset() when a new connection starts.
+ */
+public class SessionStringTable {
+
+    public static final int CAPACITY = 128;
+
+    /** Frame fields that go through the table */
+    public static final String[] KEYS = {
+        "artist", "track", "album", "appPackage", "appName", "sender", "key"
+    };
+
+    private static final String ID_SUFFIX = "#";
+
+    // Values this short cost about the same as their ID, so they are always sent inline
+    private static final int MIN_LENGTH = 4;
+
+    // Sender side: value -> ID, in access order for LRU eviction
+    private final LinkedHashMap<String, Integer> ids = new LinkedHashMap<>(CAPACITY, 0.75f, true);
+    // Receiver side: ID -> value
+    private final String[] values = new String[CAPACITY];
+
+    // Stats
+    private long hits;
+    private long definitions;
+    private long evictions;
+    private long misses;
+    private long bytesSaved;
+
+    public void reset() {
+        ids.clear();
+        Arrays.fill(values, null);
+    }
+
+    /**
+     * Replace repeated dictionary fields in an outgoing frame with their IDs
+     */
+    public void encode(JSONObject frame) throws JSONException {
+        for (String key : KEYS) {
+            String value = frame.optString(key, null);
+            if (value == null || value.length() < MIN_LENGTH) continue;
+
+            Integer id = ids.get(value);
+            if (id != null) {
+                frame.remove(key);
+                frame.put(key + ID_SUFFIX, id.intValue());
+                hits++;
+                // Saved: the quoted value minus the longer key and the ID digits
+                bytesSaved += value.length() + 2 - ID_SUFFIX.length() - String.valueOf(id).length();
+            } else {
+                frame.put(key + ID_SUFFIX, define(value));
+            }
+        }
+    }
+
+    private int define(String value) {
+        int id;
+        if (ids.size() < CAPACITY) {
+            id = ids.size();
+        } else {
+            Iterator<Map.Entry<String, Integer>> eldest = ids.entrySet().iterator();
+            id = eldest.next().getValue();
+            eldest.remove();
+            evictions++;
+        }
+        ids.put(value, id);
+        definitions++;
+        return id;
+    }
+
+    /**
+     * Restore dictionary fields in an incoming frame, learning any new definitions
+     * @return false if the frame referenced an ID this table does not know (tables out of sync)
+     */
+    public boolean decode(JSONObject frame) throws JSONException {
+        boolean complete = true;
+        for (String key : KEYS) {
+            String idKey = key + ID_SUFFIX;
+            if (!frame.has(idKey)) continue;
+
+            int id = frame.getInt(idKey);
+            frame.remove(idKey);
+            if (id < 0 || id >= CAPACITY) {
+                misses++;
+                complete = false;
+                continue;
+            }
+
+            String value = frame.optString(key, null);
+            if (value != null) {
+                values[id] = value;
+                definitions++;
+            } else if (values[id] != null) {
+                frame.put(key, values[id]);
+                hits++;
+            } else {
+                misses++;
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    public String getStats() {
+        return "hits=" + hits + ", definitions=" + definitions + ", evictions=" + evictions
+            + ", misses=" + misses + ", bytesSaved=" + bytesSaved;
+    }
+}
@@ -0,0 +1,207 @@
+package com.ddelpero.ridebridge.display;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.ddelpero.ridebridge.core.ContentHash;
+
+/**
+ * Tablet-side album art cache, keyed by the content hash the phone sends with each cover.
+ *
+ * Memory tier: decoded bitmaps in LRU order, bounded by their allocation size.
+ * Disk tier: the encoded bytes, one file per hash under the app cache directory, bounded by
+ * total size and trimmed oldest-first. It survives service restarts, so a cover seen on an
+ * earlier ride needs no transfer at all, and the widget can show art before the phone
+ * connects.
+ *
+ * Memory lookups are cheap and may happen on any thread; disk access belongs on the art
+ * decode worker.
+ */
+public class AlbumArtCache {
+
+    private static final String TAG = "RideBridge";
+    private static final String DIR_NAME = "album_art";
+    private static final String FILE_SUFFIX = ".jpg";
+    private static final long MAX_DISK_BYTES = 20L * 1024 * 1024;
+    private static final long MAX_MEMORY_BYTES = 16L * 1024 * 1024;
+
+    private final File dir; // null: memory only
+    private final long maxMemoryBytes;
+    private final LinkedHashMap<Long, Bitmap> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    private long diskBytes = -1; // unknown until the directory is first scanned
+
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long transfers = 0;
+
+    /**
+     * @param context null for a memory-only cache
+     */
+    public AlbumArtCache(Context context) {
+        this.dir = context != null ? new File(context.getCacheDir(), DIR_NAME) : null;
+        this.maxMemoryBytes = Math.min(MAX_MEMORY_BYTES, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    public synchronized Bitmap getFromMemory(long hash) {
+        Bitmap bitmap = memory.get(hash);
+        if (bitmap != null) {
+            memoryHits++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Add a decoded bitmap. Evicted bitmaps are only dropped: they may have been published
+     * and still be on screen, so they are left to the garbage collector.
+     */
+    public synchronized void putInMemory(long hash, Bitmap bitmap) {
+        Bitmap previous = memory.put(hash, bitmap);
+        if (previous != null) {
+            memoryBytes -= previous.getAllocationByteCount();
+        }
+        memoryBytes += bitmap.getAllocationByteCount();
+
+        Iterator<Map.Entry<Long, Bitmap>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && memory.size() > 1 && eldest.hasNext()) {
+            Bitmap old = eldest.next().getValue();
+            eldest.remove();
+            memoryBytes -= old.getAllocationByteCount();
+        }
+    }
+
+    /**
+     * Whether this exact bitmap is held by the memory tier (and so must not be reused)
+     */
+    public synchronized boolean holds(Bitmap bitmap) {
+        return bitmap != null && memory.containsValue(bitmap);
+    }
+
+    /**
+     * Encoded bytes from the disk tier, or null (counted as a miss)
+     */
+    public byte[] readFromDisk(long hash) {
+        File file = fileFor(dir, hash);
+        byte[] bytes = file != null ? readFile(file) : null;
+        synchronized (this) {
+            if (bytes != null) {
+                diskHits++;
+            } else {
+                misses++;
+            }
+        }
+        if (bytes != null) {
+            file.setLastModified(System.currentTimeMillis()); // LRU order for trimming
+        }
+        return bytes;
+    }
+
+    /**
+     * Store encoded bytes that came over the link
+     */
+    public void writeToDisk(long hash, byte[] bytes) {
+        synchronized (this) {
+            transfers++;
+        }
+        File file = fileFor(dir, hash);
+        if (file == null || file.exists()) return;
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "DISPLAY: Cannot create art cache directory");
+            return;
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "DISPLAY: Art cache write failed: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        trimDisk(bytes.length);
+    }
+
+    private void trimDisk(long added) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        if (diskBytes < 0) {
+            diskBytes = 0;
+            for (File f : files) diskBytes += f.length();
+        } else {
+            diskBytes += added;
+        }
+        if (diskBytes <= MAX_DISK_BYTES) return;
+
+        // Oldest first, down to 3/4 of the budget so this does not run on every write
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (diskBytes <= MAX_DISK_BYTES * 3 / 4) break;
+            long length = f.length();
+            if (f.delete()) diskBytes -= length;
+        }
+    }
+
+    public synchronized String getStats() {
+        long lookups = memoryHits + diskHits + misses + transfers;
+        long hitRate = lookups > 0 ? (memoryHits + diskHits) * 100 / lookups : 0;
+        return "memoryHits=" + memoryHits + ", diskHits=" + diskHits + ", misses=" + misses
+            + ", transfers=" + transfers + ", hitRate=" + hitRate + "%, memory="
+            + (memoryBytes / 1024) + "KB/" + memory.size() + " bitmaps";
+    }
+
+    /**
+     * Decode art straight from the disk tier, for callers without a running DisplayController
+     * (the widget on a cold start). Blocking; returns null if the art is not on disk.
+     */
+    public static Bitmap loadFromDisk(Context context, long hash, int targetSize) {
+        File file = fileFor(new File(context.getCacheDir(), DIR_NAME), hash);
+        byte[] bytes = file != null ? readFile(file) : null;
+        if (bytes == null) return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = AlbumArtDecoder.sampleSize(options.outWidth, options.outHeight, targetSize);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    private static File fileFor(File dir, long hash) {
+        if (dir == null || hash == ContentHash.NONE) return null;
+        return new File(dir, ContentHash.toHex(hash) + FILE_SUFFIX);
+    }
+
+    private static byte[] readFile(File file) {
+        long length = file.length();
+        if (length <= 0 || length > Integer.MAX_VALUE) return null;
+        byte[] bytes = new byte[(int) length];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) return null;
+                read += n;
+            }
+            return bytes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
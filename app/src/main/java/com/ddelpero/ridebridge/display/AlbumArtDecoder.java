@@ -0,0 +1,200 @@
+package com.ddelpero.ridebridge.display;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes album art off the socket reader thread. Art is subsampled while decoding to the
+ * size it is actually shown at, decoded into recycled bitmaps (inBitmap) where possible,
+ * and optionally as RGB_565, since covers are opaque JPEGs.
+ *
+ * Only bitmaps handed back through release() are reused; callers must release a bitmap
+ * only if nothing ever drew it or can still reference it (in practice: a decode that was
+ * superseded before it was published). The pool never recycles anything: a bitmap that
+ * does not fit is simply dropped and left to the garbage collector.
+ */
+public class AlbumArtDecoder {
+
+    private static final String TAG = "RideBridge";
+    private static final int MAX_POOL_SIZE = 3;
+    private static final int STATS_LOG_INTERVAL = 20;
+
+    /** Produces the encoded bytes on the worker, e.g. from base64 or from the disk cache */
+    public interface ByteSource {
+        /** @return null if there is nothing to decode */
+        byte[] load() throws Exception;
+    }
+
+    public interface Callback {
+        /** Checked on the worker before decoding; a superseded request is skipped */
+        boolean isCurrent();
+
+        /** Called on the worker; bitmap is null if the data could not be decoded */
+        void onDecoded(Bitmap bitmap);
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(
+        runnable -> new Thread(runnable, "RideBridge-ArtDecode"));
+    private final List<Bitmap> pool = new ArrayList<>();
+    private final Bitmap.Config config;
+    private volatile int targetSize;
+
+    private long decodeCount = 0;
+    private long skippedCount = 0;
+    private long reuseCount = 0;
+    private long totalLatencyMs = 0;
+    private long maxLatencyMs = 0;
+    private long totalDecodeMs = 0;
+
+    /**
+     * @param targetSize longest edge the art is displayed at, in pixels
+     * @param rgb565 decode without alpha at half the memory
+     */
+    public AlbumArtDecoder(int targetSize, boolean rgb565) {
+        this.targetSize = targetSize;
+        this.config = rgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    public void setTargetSize(int targetSize) {
+        this.targetSize = targetSize;
+    }
+
+    /**
+     * Decode base64 art on the worker
+     * @param receivedAt elapsedRealtime the frame carrying the art was received
+     * @param pooled decode into (and allow later release to) the reuse pool
+     */
+    public void decode(String encodedImage, long receivedAt, boolean pooled, Callback callback) {
+        decode(() -> Base64.decode(encodedImage, Base64.DEFAULT), receivedAt, pooled, callback);
+    }
+
+    /**
+     * Load and decode art on the worker
+     */
+    public void decode(ByteSource source, long receivedAt, boolean pooled, Callback callback) {
+        worker.execute(() -> {
+            if (!callback.isCurrent()) {
+                synchronized (this) {
+                    skippedCount++;
+                }
+                return;
+            }
+            long start = SystemClock.elapsedRealtime();
+            Bitmap bitmap = null;
+            try {
+                byte[] bytes = source.load();
+                if (bytes == null) {
+                    callback.onDecoded(null);
+                    return;
+                }
+                bitmap = decodeBytes(bytes, pooled);
+            } catch (Exception e) {
+                Log.w(TAG, "DISPLAY: Failed to decode album art: " + e.getMessage());
+            }
+            long done = SystemClock.elapsedRealtime();
+            record(done - start, done - receivedAt);
+            callback.onDecoded(bitmap);
+        });
+    }
+
+    /**
+     * Hand a bitmap back for reuse. It must have come from a pooled decode and must never
+     * have been published to the UI.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) return;
+        if (pool.contains(bitmap)) return;
+        pool.add(bitmap);
+        if (pool.size() > MAX_POOL_SIZE) {
+            pool.remove(0); // not recycled: the GC frees it once truly unreferenced
+        }
+    }
+
+    // Worker thread
+    private Bitmap decodeBytes(byte[] bytes, boolean pooled) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetSize);
+        options.inPreferredConfig = config;
+        if (pooled) {
+            options.inMutable = true;
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = takeReusable(width * height * bytesPerPixel(config));
+        }
+
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all; decode into a fresh one
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    private synchronized Bitmap takeReusable(int byteCount) {
+        Iterator<Bitmap> it = pool.iterator();
+        while (it.hasNext()) {
+            Bitmap candidate = it.next();
+            if (candidate.getAllocationByteCount() >= byteCount) {
+                it.remove();
+                reuseCount++;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Largest power of two that keeps both edges at or above the target
+     */
+    static int sampleSize(int width, int height, int target) {
+        int sample = 1;
+        if (target <= 0) return sample;
+        while (width / (sample * 2) >= target && height / (sample * 2) >= target) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+
+    private synchronized void record(long decodeMs, long latencyMs) {
+        decodeCount++;
+        totalDecodeMs += decodeMs;
+        totalLatencyMs += latencyMs;
+        if (latencyMs > maxLatencyMs) maxLatencyMs = latencyMs;
+        if (decodeCount % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, "DISPLAY: Art decoder " + getStats());
+        }
+    }
+
+    public synchronized String getStats() {
+        long avgDecode = decodeCount > 0 ? totalDecodeMs / decodeCount : 0;
+        long avgLatency = decodeCount > 0 ? totalLatencyMs / decodeCount : 0;
+        return "decoded=" + decodeCount + ", skipped=" + skippedCount + ", reused=" + reuseCount
+            + ", decodeAvg=" + avgDecode + "ms, receiptToPixelsAvg=" + avgLatency
+            + "ms, receiptToPixelsMax=" + maxLatencyMs + "ms";
+    }
+
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+}
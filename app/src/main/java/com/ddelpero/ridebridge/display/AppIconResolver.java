@@ -0,0 +1,237 @@
+package com.ddelpero.ridebridge.display;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * App icons for notifications shown on the tablet, by package name. The app that posted
+ * a notification is usually only installed on the phone, so an unknown icon is asked from
+ * the phone once (ICON command, answered with an "icon" frame) and kept on disk.
+ *
+ * get() is a map lookup: an icon, or null for "not known (yet)". Anything not in memory is
+ * resolved on a worker, in order: this device's PackageManager, the disk cache, the phone.
+ * Listeners hear about icons that arrive later. Packages neither side has an icon for are
+ * remembered as misses (in memory, and as an empty file on disk) so they are not looked up
+ * again for NEGATIVE_TTL_MS.
+ */
+public class AppIconResolver {
+
+    private static final String TAG = "RideBridge";
+    private static final String DIR_NAME = "app_icons";
+    private static final String FILE_SUFFIX = ".png";
+    private static final int MAX_ENTRIES = 32;
+    private static final int ICON_SIZE_PX = 96;
+    private static final long NEGATIVE_TTL_MS = 24 * 60 * 60 * 1000L;
+    private static final long REQUEST_RETRY_MS = 60 * 1000L; // phone did not answer
+
+    public interface Listener {
+        /** Main thread */
+        void onIconResolved(String appPackage, Bitmap icon);
+    }
+
+    /** Sends the ICON request to the phone; set while a DisplayController runs */
+    public interface Requester {
+        void requestIcon(String appPackage);
+    }
+
+    private static AppIconResolver instance;
+
+    private final Context context;
+    private final File dir;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(
+        runnable -> new Thread(runnable, "RideBridge-Icons"));
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Requester requester;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Bitmap> icons = new LinkedHashMap<String, Bitmap>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<String, Long> missedUntil = new HashMap<>();  // elapsedRealtime
+    private final Map<String, Long> resolving = new HashMap<>();    // started at, elapsedRealtime
+
+    private long hits = 0;
+    private long negativeHits = 0;
+    private long localLoads = 0;
+    private long diskLoads = 0;
+    private long phoneRequests = 0;
+
+    public static synchronized AppIconResolver getInstance(Context context) {
+        if (instance == null) {
+            instance = new AppIconResolver(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AppIconResolver(Context context) {
+        this.context = context;
+        this.dir = new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    public void setRequester(Requester requester) {
+        this.requester = requester;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The icon if known, otherwise null; an unknown package is resolved in the background
+     */
+    public synchronized Bitmap get(String appPackage) {
+        if (!isPackageName(appPackage)) return null;
+        Bitmap icon = icons.get(appPackage);
+        if (icon != null) {
+            hits++;
+            return icon;
+        }
+        long now = SystemClock.elapsedRealtime();
+        Long missed = missedUntil.get(appPackage);
+        if (missed != null && now < missed) {
+            negativeHits++;
+            return null;
+        }
+        Long started = resolving.get(appPackage);
+        if (started != null && now - started < REQUEST_RETRY_MS) {
+            return null;
+        }
+        resolving.put(appPackage, now);
+        worker.execute(() -> resolve(appPackage));
+        return null;
+    }
+
+    /**
+     * The phone's answer to an ICON request: base64 PNG, or empty if it has none
+     */
+    public void onIconFrame(String appPackage, String encodedIcon) {
+        if (!isPackageName(appPackage)) return;
+        worker.execute(() -> {
+            byte[] bytes = encodedIcon.isEmpty() ? new byte[0] : Base64.decode(encodedIcon, Base64.DEFAULT);
+            writeToDisk(appPackage, bytes);
+            Bitmap icon = bytes.length > 0 ? BitmapFactory.decodeByteArray(bytes, 0, bytes.length) : null;
+            publish(appPackage, icon);
+        });
+    }
+
+    // Worker thread
+    private void resolve(String appPackage) {
+        Bitmap icon = loadLocal(appPackage);
+        if (icon != null) {
+            synchronized (this) {
+                localLoads++;
+            }
+            publish(appPackage, icon);
+            return;
+        }
+
+        File file = new File(dir, appPackage + FILE_SUFFIX);
+        if (file.exists()) {
+            boolean negative = file.length() == 0;
+            if (!negative || System.currentTimeMillis() - file.lastModified() < NEGATIVE_TTL_MS) {
+                synchronized (this) {
+                    diskLoads++;
+                }
+                publish(appPackage, negative ? null : BitmapFactory.decodeFile(file.getPath()));
+                return;
+            }
+        }
+
+        Requester current = requester;
+        if (current != null) {
+            synchronized (this) {
+                phoneRequests++;
+            }
+            current.requestIcon(appPackage);
+        }
+        // Otherwise retried after REQUEST_RETRY_MS, once a phone may be connected
+    }
+
+    private Bitmap loadLocal(String appPackage) {
+        Drawable drawable;
+        try {
+            drawable = context.getPackageManager().getApplicationIcon(appPackage);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(ICON_SIZE_PX, ICON_SIZE_PX, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, ICON_SIZE_PX, ICON_SIZE_PX);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    private void writeToDisk(String appPackage, byte[] bytes) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "DISPLAY: Cannot create icon cache directory");
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(dir, appPackage + FILE_SUFFIX))) {
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "DISPLAY: Icon cache write failed: " + e.getMessage());
+        }
+    }
+
+    private void publish(String appPackage, Bitmap icon) {
+        synchronized (this) {
+            resolving.remove(appPackage);
+            if (icon != null) {
+                icons.put(appPackage, icon);
+                missedUntil.remove(appPackage);
+            } else {
+                missedUntil.put(appPackage, SystemClock.elapsedRealtime() + NEGATIVE_TTL_MS);
+            }
+        }
+        if (icon == null) return;
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onIconResolved(appPackage, icon);
+            }
+        });
+    }
+
+    // Also keeps names from the link usable as file names
+    private static boolean isPackageName(String name) {
+        if (name == null || name.isEmpty() || name.startsWith(".")) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '_';
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    public synchronized String getStats() {
+        return "icons=" + icons.size() + ", hits=" + hits + ", negativeHits=" + negativeHits
+            + ", local=" + localLoads + ", disk=" + diskLoads + ", phoneRequests=" + phoneRequests;
+    }
+}
@@ -1,26 +1,59 @@
 package com.ddelpero.ridebridge.display;
 
 import android.util.Log;
-import android.graphics.Bitmap;
 import android.util.Base64;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import org.json.JSONObject;
 
+import com.ddelpero.ridebridge.R;
 import com.ddelpero.ridebridge.core.BluetoothManager;
+import com.ddelpero.ridebridge.core.ContentHash;
+import com.ddelpero.ridebridge.core.RemoteCommand;
 import com.ddelpero.ridebridge.core.RideBridgeService;
 import com.ddelpero.ridebridge.notifications.NotificationData;
+import com.ddelpero.ridebridge.notifications.NotificationTable;
 
 public class DisplayController {
 
     private final BluetoothManager bluetoothManager;
     private final RideBridgeService service;
-    private OnDisplayDataReceived displayListener;
     private OnCommandSend commandSendListener;
     private OnRawDataReceived rawDataListener;
     private OnNotificationReceived notificationListener;
+    private boolean resyncRequested = false;
+    private final MediaStateStore store = MediaStateStore.getInstance();
+    private final PrefetchCache prefetchCache = new PrefetchCache();
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+    private final NotificationTable notificationTable = new NotificationTable();
+    private final AlbumArtDecoder artDecoder;
+    private final AlbumArtCache artCache;
+    private final AppIconResolver iconResolver; // null without a service
+    private int artGeneration = 0;  // bumped for every art change; stale decodes are dropped
+    private long loadingArtHash = ContentHash.NONE; // art being loaded for the current track
+    private String savedTrack;      // last track written to prefs for the widget's cold start
+    private boolean predictionPending = false; // showing a predicted next track, unconfirmed
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable predictionTimeout = this::onPredictionTimeout;
+    private long savedArtHash = ContentHash.NONE;
 
-    public interface OnDisplayDataReceived {
-        void onMediaDataReceived(MediaData mediaData);
-    }
+    // Last track, kept in prefs so the widget can show it before the phone connects
+    public static final String PREF_LAST_TRACK = "last_track";
+    public static final String PREF_LAST_ARTIST = "last_artist";
+    public static final String PREF_LAST_ART_HASH = "last_art_hash";
+
+    // Used when there is no service to read the on-screen art size from
+    private static final int DEFAULT_ART_TARGET_SIZE = 512;
+    // Covers are opaque JPEGs, alpha would only double the memory
+    private static final boolean ART_RGB_565 = true;
+
+    // How long a predicted next track may stay up without the phone reporting a track change
+    private static final long PREDICTION_CONFIRM_MS = 2500;
+
+    // Upper bound on how much link latency we trust the two wall clocks to measure
+    private static final long MAX_TRANSIT_MS = 2000;
 
     public interface OnCommandSend {
         void onSendCommand(String command);
@@ -31,37 +64,45 @@ public class DisplayController {
     }
     
     public interface OnNotificationReceived {
+        /** A new notification, or a complete replacement for one with the same key */
         void onNotificationReceived(NotificationData notification);
-    }
-
-    public static class MediaData {
-        public String track;
-        public String artist;
-        public boolean isPlaying;
-        public Bitmap albumArt;
-        public long position;
-        public long duration;
-        public float playbackSpeed;
-
-        public MediaData() {
-            this.track = "Unknown Title";
-            this.artist = "Unknown Artist";
-            this.isPlaying = false;
-            this.position = 0;
-            this.duration = 0;
-            this.playbackSpeed = 0;
-        }
+        /** The phone no longer has it (read or dismissed there) */
+        void onNotificationRemoved(String key);
     }
 
     public DisplayController(RideBridgeService service, BluetoothManager bluetoothManager) {
         this.service = service;
         this.bluetoothManager = bluetoothManager;
+        this.artDecoder = new AlbumArtDecoder(
+            service.getResources().getDimensionPixelSize(R.dimen.album_art_size), ART_RGB_565);
+        this.artCache = new AlbumArtCache(service);
+        this.iconResolver = AppIconResolver.getInstance(service);
+        iconResolver.setRequester(appPackage -> sendCommand(RemoteCommand.OP_ICON, appPackage));
     }
 
     // Backward compatibility constructor for code that doesn't have service reference
     public DisplayController(BluetoothManager bluetoothManager) {
         this.service = null;
         this.bluetoothManager = bluetoothManager;
+        this.artDecoder = new AlbumArtDecoder(DEFAULT_ART_TARGET_SIZE, ART_RGB_565);
+        this.artCache = new AlbumArtCache(null);
+        this.iconResolver = null;
+    }
+
+    /**
+     * Stop background work; the receiver thread itself is owned by BluetoothManager
+     */
+    public void stop() {
+        handler.removeCallbacks(predictionTimeout);
+        log("DISPLAY: Art decoder " + artDecoder.getStats());
+        log("DISPLAY: Art cache " + artCache.getStats());
+        log("DISPLAY: Frame sequence " + sequenceTracker.getStats());
+        log("DISPLAY: Media state " + store.getStats());
+        if (iconResolver != null) {
+            log("DISPLAY: App icons " + iconResolver.getStats());
+            iconResolver.setRequester(null);
+        }
+        artDecoder.shutdown();
     }
 
     private void log(String message) {
@@ -72,10 +113,6 @@ public class DisplayController {
         }
     }
 
-    public void setDisplayDataListener(OnDisplayDataReceived listener) {
-        this.displayListener = listener;
-    }
-
     public void setCommandSendListener(OnCommandSend listener) {
         this.commandSendListener = listener;
     }
@@ -96,6 +133,7 @@ public class DisplayController {
         log("DISPLAY: Starting listener for tablet mode...");
 
         bluetoothManager.startEmulatorListener(data -> {
+            long receivedAt = SystemClock.elapsedRealtime();
             log("DISPLAY: Raw data received: " + data);
             
             // Notify raw data listener
@@ -105,35 +143,77 @@ public class DisplayController {
             
             try {
                 JSONObject json = new JSONObject(data);
+                if (bluetoothManager.getIncomingStrings().decode(json)) {
+                    resyncRequested = false;
+                } else {
+                    // Phone referenced a string we never saw: the frame is missing fields, so
+                    // drop it rather than show placeholders, and ask for a fresh table (the
+                    // phone follows the reset with a keyframe)
+                    if (!resyncRequested) {
+                        log("DISPLAY: Unknown string table ID, requesting resync");
+                        resyncRequested = true;
+                        sendCommand(RemoteCommand.OP_RESYNC, 0);
+                    }
+                    log("DISPLAY: Dropping " + json.optString("type", "media") + " frame with unknown string IDs");
+                    return;
+                }
                 String type = json.optString("type", "media");
+
+                // Drop frames overtaken by a newer one on the same stream before any
+                // decoding work (the string table above must still see every frame)
+                long gapsBefore = sequenceTracker.getGapCount();
+                if (!sequenceTracker.accept(json, type)) {
+                    log("DISPLAY: Dropping stale " + type + " frame seq=" + json.optLong("seq")
+                            + " (" + sequenceTracker.getStats() + ")");
+                    return;
+                }
+                if (sequenceTracker.getGapCount() != gapsBefore) {
+                    log("DISPLAY: Sequence gap on " + type + " stream (" + sequenceTracker.getStats() + ")");
+                }
                 
                 if ("notification".equals(type)) {
-                    // Handle incoming notification
-                    NotificationData notification = new NotificationData(
-                        json.getString("appPackage"),
-                        json.getString("appName"),
-                        json.getString("sender"),
-                        json.getString("message")
-                    );
-                    log("DISPLAY: Received notification from " + notification.appName);
-                    if (notificationListener != null) {
-                        notificationListener.onNotificationReceived(notification);
+                    // Add, update or remove; the table turns updates into complete notifications
+                    NotificationData frame = NotificationData.fromJson(json);
+                    NotificationData notification = notificationTable.apply(frame);
+                    if (NotificationData.OP_REMOVE.equals(frame.op)) {
+                        log("DISPLAY: Notification withdrawn by phone: "
+                                + (notification != null ? notification.appName : "(unknown)"));
+                        // Even for keys the table lost (evicted, or a restart): what was posted
+                        // for them may still be up, and cancelling an unknown key is harmless
+                        if (frame.key != null && notificationListener != null) {
+                            notificationListener.onNotificationRemoved(frame.key);
+                        }
+                    } else {
+                        log("DISPLAY: Received notification " + notification.op + " from " + notification.appName
+                                + (notification.count > 1 ? " (" + notification.count + " messages)" : ""));
+                        if (notificationListener != null) {
+                            notificationListener.onNotificationReceived(notification);
+                        }
+                    }
+                } else if ("queue".equals(type)) {
+                    log("DISPLAY: Queue update - length=" + json.optInt("queueLength", 0)
+                            + ", active=" + json.optLong("queueActiveId", -1));
+                    applyQueue(json);
+                } else if ("prefetch".equals(type)) {
+                    applyPrefetch(json, receivedAt);
+                } else if ("art".equals(type)) {
+                    applyArtResend(json, receivedAt);
+                } else if ("icon".equals(type)) {
+                    String appPackage = json.optString("package", "");
+                    log("DISPLAY: Received icon for " + appPackage);
+                    if (iconResolver != null) {
+                        iconResolver.onIconFrame(appPackage, json.optString("icon", ""));
                     }
                 } else {
-                    // Handle media data
-                    MediaData mediaData = parseMediaData(json);
-
-                    log("DISPLAY: Parsed media - track=" + mediaData.track + ", artist=" + mediaData.artist);
-                    
-                    // Update widget
-                    if (service != null) {
-                        service.updateWidget(mediaData);
+                    // "media" (full), "meta" or "playback": each carries only its own fields
+                    if (json.optBoolean("keyframe", false)) {
+                        prefetchCache.clear();
                     }
-                    
-                    if (displayListener != null) {
-                        log("DISPLAY: Calling displayListener callback");
-                        displayListener.onMediaDataReceived(mediaData);
+                    if (json.has("upcoming")) {
+                        applyQueue(json);
                     }
+                    MediaState state = applyMediaFrame(json, receivedAt);
+                    log("DISPLAY: Parsed media - track=" + state.track + ", artist=" + state.artist);
                 }
             } catch (Exception e) {
                 log("DISPLAY: Error parsing data: " + e.getMessage());
@@ -142,29 +222,147 @@ public class DisplayController {
         }, "TABLET_RECEIVER");
     }
 
-    private MediaData parseMediaData(JSONObject json) {
-        MediaData data = new MediaData();
+    /**
+     * Hand a new snapshot to the store, which notifies the widget and activities of the
+     * fields that changed. Called with this lock held so snapshots built from the current
+     * one are published in the order they were built.
+     */
+    private void publishMedia(MediaState state) {
+        int changes = store.publish(state);
+        if ((changes & (MediaStateStore.CHANGED_TRACK | MediaStateStore.CHANGED_ARTIST | MediaStateStore.CHANGED_ART)) != 0) {
+            saveLastTrack(state);
+        }
+    }
+
+    private synchronized void saveLastTrack(MediaState state) {
+        if (service == null) return;
+        if (java.util.Objects.equals(state.track, savedTrack) && state.artHash == savedArtHash) return;
+        savedTrack = state.track;
+        savedArtHash = state.artHash;
+        service.getSharedPreferences("RideBridgePrefs", android.content.Context.MODE_PRIVATE).edit()
+            .putString(PREF_LAST_TRACK, state.track)
+            .putString(PREF_LAST_ARTIST, state.artist)
+            .putString(PREF_LAST_ART_HASH, ContentHash.toHex(state.artHash))
+            .apply();
+    }
+
+    private void applyQueue(JSONObject json) {
+        org.json.JSONArray next = json.optJSONArray("upcoming");
+        long[] ids = new long[next != null ? next.length() : 0];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = next.optLong(i);
+        }
+        prefetchCache.setUpcoming(ids);
+    }
+
+    private void applyPrefetch(JSONObject json, long receivedAt) throws org.json.JSONException {
+        long queueId = json.getLong("queueId");
+        String track = json.optString("track", "Unknown Title");
+        String artist = json.optString("artist", "Unknown Artist");
+        String encodedImage = json.optString("albumArt", "");
+        if (encodedImage.isEmpty()) {
+            prefetchCache.put(new PrefetchCache.Entry(queueId, track, artist, null));
+            return;
+        }
+        // Thumbnails are not pooled: they may be shown by predictNext at any time
+        artDecoder.decode(encodedImage, receivedAt, false, new AlbumArtDecoder.Callback() {
+            @Override
+            public boolean isCurrent() {
+                return true;
+            }
+
+            @Override
+            public void onDecoded(Bitmap bitmap) {
+                prefetchCache.put(new PrefetchCache.Entry(queueId, track, artist, bitmap));
+                log("DISPLAY: Prefetched queue item " + queueId + " (" + prefetchCache.getStats() + ")");
+            }
+        });
+    }
+
+    /**
+     * Show the prefetched next track straight away when NEXT is sent; the phone's frames
+     * for the track that actually plays arrive afterwards and overwrite it. If none arrive
+     * within PREDICTION_CONFIRM_MS (NEXT was a no-op or got lost, or the player went
+     * somewhere else), the guess is dropped by asking the phone for a keyframe.
+     */
+    private void predictNext() {
+        PrefetchCache.Entry next = prefetchCache.takeNext();
+        if (next == null) {
+            log("DISPLAY: Next track not prefetched (" + prefetchCache.getStats() + ")");
+            return;
+        }
+
+        synchronized (this) {
+            MediaState current = store.getState();
+            artGeneration++; // a decode still running for the old track must not overwrite this
+            loadingArtHash = ContentHash.NONE;
+            MediaState.Builder data = current != null ? current.buildUpon() : MediaState.builder();
+            data.track(next.track)
+                .artist(next.artist)
+                .art(next.art, ContentHash.NONE)
+                .duration(0)
+                .playback(current != null && current.isPlaying, 0, SystemClock.elapsedRealtime(),
+                    current != null ? current.playbackSpeed : 0f);
+            publishMedia(data.build());
+            predictionPending = true;
+        }
+        handler.removeCallbacks(predictionTimeout);
+        handler.postDelayed(predictionTimeout, PREDICTION_CONFIRM_MS);
+        log("DISPLAY: Showing prefetched next track: " + next.track);
+    }
+
+    private void onPredictionTimeout() {
+        synchronized (this) {
+            if (!predictionPending) return;
+            predictionPending = false;
+        }
+        // RESYNC makes the phone send a keyframe of what is really playing
+        log("DISPLAY: Predicted next track not confirmed, requesting keyframe");
+        sendCommand(RemoteCommand.OP_RESYNC, 0);
+    }
+
+    /**
+     * Merge a media frame into the current state. Frames only carry the fields that
+     * changed; a keyframe starts over from defaults. The result is published.
+     */
+    private synchronized MediaState applyMediaFrame(JSONObject json, long receivedAt) {
+        boolean keyframe = json.optBoolean("keyframe", false);
+        MediaState current = store.getState();
+        MediaState.Builder data = (keyframe || current == null) ? MediaState.builder() : current.buildUpon();
+        if (predictionPending && (keyframe || json.has("track"))) {
+            // The phone reported the track now playing, whichever it is
+            predictionPending = false;
+            handler.removeCallbacks(predictionTimeout);
+        }
 
         try {
-            data.track = json.optString("track", "Unknown Title");
-            data.artist = json.optString("artist", "Unknown Artist");
-            data.isPlaying = json.optBoolean("playing", false);
-            data.position = json.optLong("position", 0);
-            data.duration = json.optLong("duration", 0);
-            // CRITICAL: If not playing, force speed to 0 so the progress ticker doesn't advance
-            data.playbackSpeed = data.isPlaying ? (float) json.optDouble("speed", 1.0) : 0.0f;
-
-            // Decode album art if present
-            String encodedImage = json.optString("albumArt", "");
-            if (!encodedImage.isEmpty()) {
-                try {
-                    byte[] decodedBytes = Base64.decode(encodedImage, Base64.DEFAULT);
-                    data.albumArt = android.graphics.BitmapFactory.decodeByteArray(
-                            decodedBytes, 0, decodedBytes.length
-                    );
-                    log("DISPLAY: Album art decoded successfully");
-                } catch (Exception e) {
-                    log("DISPLAY: Failed to decode album art: " + e.getMessage());
+            if (json.has("track")) data.track(json.optString("track", "Unknown Title"));
+            if (json.has("artist")) data.artist(json.optString("artist", "Unknown Artist"));
+            if (json.has("duration")) data.duration(json.optLong("duration", 0));
+
+            if (json.has("position")) {
+                // CRITICAL: If not playing, the builder forces speed to 0 so the progress ticker doesn't advance
+                data.playback(json.optBoolean("playing", false), json.optLong("position", 0),
+                    positionAnchor(json.optLong("positionTime", 0)), (float) json.optDouble("speed", 1.0));
+            }
+
+            // Art comes by content hash, with the bytes only the first time the phone sends
+            // it. Cached art is shown at once; otherwise it is loaded on the worker and the
+            // previous art stays up until then (none after a keyframe). An empty "albumArt"
+            // without a hash means the track has none.
+            if (json.has("albumArt") || json.has("artHash")) {
+                long hash = ContentHash.fromHex(json.optString("artHash", ""));
+                String encodedImage = json.optString("albumArt", "");
+                int generation = ++artGeneration;
+                loadingArtHash = ContentHash.NONE;
+                Bitmap cached = hash != ContentHash.NONE ? artCache.getFromMemory(hash) : null;
+                if (cached != null) {
+                    data.art(cached, hash);
+                } else if (hash == ContentHash.NONE && encodedImage.isEmpty()) {
+                    data.art(null, ContentHash.NONE);
+                } else {
+                    loadingArtHash = hash;
+                    loadArt(hash, encodedImage, receivedAt, generation);
                 }
             }
 
@@ -172,55 +370,139 @@ public class DisplayController {
             log("DISPLAY: Error parsing JSON: " + e.getMessage());
         }
 
-        return data;
+        MediaState state = data.build();
+        publishMedia(state);
+        return state;
+    }
+
+    /**
+     * Bytes for art the phone had sent by hash only and we did not have
+     */
+    private void applyArtResend(JSONObject json, long receivedAt) {
+        long hash = ContentHash.fromHex(json.optString("artHash", ""));
+        String encodedImage = json.optString("albumArt", "");
+        if (hash == ContentHash.NONE || encodedImage.isEmpty()) return;
+        synchronized (this) {
+            if (loadingArtHash != hash) {
+                log("DISPLAY: Resent art " + ContentHash.toHex(hash) + " no longer current");
+                return;
+            }
+            loadArt(hash, encodedImage, receivedAt, ++artGeneration);
+        }
+    }
+
+    /**
+     * Decode art from the frame's bytes (storing them on disk), or from the disk tier when
+     * the phone only sent the hash. A disk miss asks the phone for the bytes.
+     */
+    private void loadArt(long hash, String encodedImage, long receivedAt, int generation) {
+        AlbumArtDecoder.ByteSource source = () -> {
+            if (!encodedImage.isEmpty()) {
+                byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
+                if (hash != ContentHash.NONE) {
+                    artCache.writeToDisk(hash, bytes);
+                }
+                return bytes;
+            }
+            byte[] bytes = artCache.readFromDisk(hash);
+            if (bytes == null) {
+                log("DISPLAY: Art " + ContentHash.toHex(hash) + " not cached, requesting it");
+                sendCommand(RemoteCommand.OP_ART_MISS, hash);
+            }
+            return bytes;
+        };
+
+        artDecoder.decode(source, receivedAt, true, new AlbumArtDecoder.Callback() {
+            @Override
+            public boolean isCurrent() {
+                synchronized (DisplayController.this) {
+                    return generation == artGeneration;
+                }
+            }
+
+            @Override
+            public void onDecoded(Bitmap bitmap) {
+                if (bitmap == null) {
+                    return; // undecodable, or waiting for the phone to resend it
+                }
+                if (hash != ContentHash.NONE) {
+                    artCache.putInMemory(hash, bitmap);
+                }
+
+                boolean shown = false;
+                synchronized (DisplayController.this) {
+                    MediaState current = store.getState();
+                    if (generation == artGeneration && current != null) {
+                        loadingArtHash = ContentHash.NONE;
+                        publishMedia(current.buildUpon().art(bitmap, hash).build());
+                        shown = true;
+                    } else if (!artCache.holds(bitmap)) {
+                        // Superseded while decoding and not cached; nobody has seen this bitmap
+                        artDecoder.release(bitmap);
+                    }
+                }
+                if (shown) {
+                    log("DISPLAY: Album art decoded successfully (" + artCache.getStats() + ")");
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert the phone's positionTime (its wall clock) into our elapsedRealtime,
+     * trusting the clock difference only as far as a plausible transit delay
+     */
+    private static long positionAnchor(long positionTime) {
+        long now = SystemClock.elapsedRealtime();
+        if (positionTime <= 0) {
+            return now;
+        }
+        long transit = System.currentTimeMillis() - positionTime;
+        return now - Math.max(0, Math.min(MAX_TRANSIT_MS, transit));
+    }
+
+    /**
+     * Send a typed command to the phone
+     */
+    public void sendCommand(int opcode, long arg) {
+        String command = RemoteCommand.encode(opcode, arg);
+        log("DISPLAY: Sending " + command + " command");
+        bluetoothManager.sendCommandToPhone(command);
+        if (opcode == RemoteCommand.OP_NEXT) {
+            predictNext();
+        }
+    }
+
+    /**
+     * Send a command with a text argument to the phone
+     */
+    public void sendCommand(int opcode, String arg) {
+        String command = RemoteCommand.encode(opcode, arg);
+        log("DISPLAY: Sending " + command + " command");
+        bluetoothManager.sendCommandToPhone(command);
     }
 
     public void sendPlayCommand() {
-        log("DISPLAY: Sending PLAY command");
-        bluetoothManager.sendCommandToPhone("PLAY");
-        // if (commandSendListener != null) {
-        //     commandSendListener.onSendCommand("PLAY");
-        // }
+        sendCommand(RemoteCommand.OP_PLAY, 0);
     }
 
     public void sendPauseCommand() {
-        log("DISPLAY: Sending PAUSE command");
-        bluetoothManager.sendCommandToPhone("PAUSE");
-        // if (commandSendListener != null) {
-        //     commandSendListener.onSendCommand("PAUSE");
-        // }
+        sendCommand(RemoteCommand.OP_PAUSE, 0);
     }
 
     public void sendNextCommand() {
-        log("DISPLAY: Sending NEXT command");
-        bluetoothManager.sendCommandToPhone("NEXT");
-        // if (commandSendListener != null) {
-        //     commandSendListener.onSendCommand("NEXT");
-        // }
+        sendCommand(RemoteCommand.OP_NEXT, 0);
     }
 
     public void sendPreviousCommand() {
-        log("DISPLAY: Sending PREVIOUS command");
-        bluetoothManager.sendCommandToPhone("PREV");
-        // if (commandSendListener != null) {
-        //     commandSendListener.onSendCommand("PREV");
-        // }
+        sendCommand(RemoteCommand.OP_PREV, 0);
     }
 
     public void sendSeekCommand(long positionMs) {
-        String command = "SEEK:" + positionMs;
-        log("DISPLAY: Sending SEEK command: " + command);
-        bluetoothManager.sendCommandToPhone(command);
-        // if (commandSendListener != null) {
-        //     commandSendListener.onSendCommand(command);
-        // }
+        sendCommand(RemoteCommand.OP_SEEK, positionMs);
     }
 
     public void sendVoiceCommand() {
-        log("DISPLAY: Sending VOICE command");
-        bluetoothManager.sendCommandToPhone("VOICE");
-        // if (commandSendListener != null) {
-        //     commandSendListener.onSendCommand("VOICE");
-        // }
+        sendCommand(RemoteCommand.OP_VOICE, 0);
     }
 }
@@ -0,0 +1,145 @@
+package com.ddelpero.ridebridge.display;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.util.Objects;
+
+import com.ddelpero.ridebridge.core.ContentHash;
+
+/**
+ * Immutable snapshot of what the tablet shows for the current track. One snapshot is built
+ * per applied frame and shared by every subscriber of MediaStateStore; use buildUpon() to
+ * derive the next one.
+ */
+public final class MediaState {
+
+    public final String track;
+    public final String artist;
+    public final boolean isPlaying;
+    public final Bitmap albumArt;
+    public final long artHash; // ContentHash of albumArt; NONE if unknown or no art
+    public final long position;
+    public final long positionTimestamp; // elapsedRealtime at which position was valid
+    public final long duration;
+    public final float playbackSpeed;
+
+    private MediaState(Builder builder) {
+        this.track = builder.track;
+        this.artist = builder.artist;
+        this.isPlaying = builder.isPlaying;
+        this.albumArt = builder.albumArt;
+        this.artHash = builder.artHash;
+        this.position = builder.position;
+        this.positionTimestamp = builder.positionTimestamp;
+        this.duration = builder.duration;
+        this.playbackSpeed = builder.playbackSpeed;
+    }
+
+    /**
+     * Defaults for a track nothing is known about yet
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder buildUpon() {
+        return new Builder(this);
+    }
+
+    /**
+     * Tablet half of the position contract: the phone only sends position on
+     * discontinuities, so extrapolate from the last one at the reported speed
+     */
+    public long positionAt(long elapsedRealtime) {
+        long current = position;
+        if (playbackSpeed > 0) {
+            current += (long) ((elapsedRealtime - positionTimestamp) * playbackSpeed);
+        }
+        if (duration > 0 && current > duration) {
+            current = duration;
+        }
+        return Math.max(0, current);
+    }
+
+    /**
+     * MediaStateStore.CHANGED_* bits for the fields that differ from previous (all if null)
+     */
+    public int diff(MediaState previous) {
+        if (previous == null) return MediaStateStore.CHANGED_ALL;
+        int changes = 0;
+        if (!Objects.equals(track, previous.track)) changes |= MediaStateStore.CHANGED_TRACK;
+        if (!Objects.equals(artist, previous.artist)) changes |= MediaStateStore.CHANGED_ARTIST;
+        if (isPlaying != previous.isPlaying) changes |= MediaStateStore.CHANGED_PLAYING;
+        if (albumArt != previous.albumArt || artHash != previous.artHash) changes |= MediaStateStore.CHANGED_ART;
+        if (position != previous.position || positionTimestamp != previous.positionTimestamp
+                || playbackSpeed != previous.playbackSpeed) {
+            changes |= MediaStateStore.CHANGED_POSITION;
+        }
+        if (duration != previous.duration) changes |= MediaStateStore.CHANGED_DURATION;
+        return changes;
+    }
+
+    public static final class Builder {
+        private String track = "Unknown Title";
+        private String artist = "Unknown Artist";
+        private boolean isPlaying = false;
+        private Bitmap albumArt;
+        private long artHash = ContentHash.NONE;
+        private long position = 0;
+        private long positionTimestamp = SystemClock.elapsedRealtime();
+        private long duration = 0;
+        private float playbackSpeed = 0;
+
+        private Builder() {
+        }
+
+        private Builder(MediaState state) {
+            this.track = state.track;
+            this.artist = state.artist;
+            this.isPlaying = state.isPlaying;
+            this.albumArt = state.albumArt;
+            this.artHash = state.artHash;
+            this.position = state.position;
+            this.positionTimestamp = state.positionTimestamp;
+            this.duration = state.duration;
+            this.playbackSpeed = state.playbackSpeed;
+        }
+
+        public Builder track(String track) {
+            this.track = track;
+            return this;
+        }
+
+        public Builder artist(String artist) {
+            this.artist = artist;
+            return this;
+        }
+
+        public Builder duration(long duration) {
+            this.duration = duration;
+            return this;
+        }
+
+        public Builder art(Bitmap albumArt, long artHash) {
+            this.albumArt = albumArt;
+            this.artHash = artHash;
+            return this;
+        }
+
+        /**
+         * @param speed ignored (0) while paused so the position does not advance
+         */
+        public Builder playback(boolean isPlaying, long position, long positionTimestamp, float speed) {
+            this.isPlaying = isPlaying;
+            this.position = position;
+            this.positionTimestamp = positionTimestamp;
+            this.playbackSpeed = isPlaying ? speed : 0f;
+            return this;
+        }
+
+        public MediaState build() {
+            return new MediaState(this);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ddelpero.ridebridge.display;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The tablet's single source of media state. DisplayController publishes an immutable
+ * MediaState per applied frame; subscribers (widget, activities) get the new snapshot
+ * together with a CHANGED_* mask and only redraw what the mask names. A snapshot equal to
+ * the current one is not published at all.
+ *
+ * Listeners are called on the publishing thread, in publish order, and must hand UI work
+ * off to their own thread.
+ */
+public class MediaStateStore {
+
+    public static final int CHANGED_TRACK = 1;
+    public static final int CHANGED_ARTIST = 1 << 1;
+    public static final int CHANGED_PLAYING = 1 << 2;
+    public static final int CHANGED_ART = 1 << 3;
+    public static final int CHANGED_POSITION = 1 << 4; // position, its timestamp or speed
+    public static final int CHANGED_DURATION = 1 << 5;
+    public static final int CHANGED_ALL = (1 << 6) - 1;
+
+    public interface Listener {
+        void onMediaStateChanged(MediaState state, int changes);
+    }
+
+    private static final MediaStateStore instance = new MediaStateStore();
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private MediaState state; // null until the first frame
+
+    private long published = 0;
+    private long unchanged = 0;
+
+    public static MediaStateStore getInstance() {
+        return instance;
+    }
+
+    private MediaStateStore() {
+    }
+
+    /**
+     * Current snapshot, or null if nothing has been received yet
+     */
+    public synchronized MediaState getState() {
+        return state;
+    }
+
+    /**
+     * Replace the current snapshot and notify subscribers of what changed
+     * @return the CHANGED_* mask, 0 if nothing changed
+     */
+    public synchronized int publish(MediaState next) {
+        int changes = next.diff(state);
+        if (changes == 0) {
+            unchanged++;
+            return 0;
+        }
+        state = next;
+        published++;
+        // Under the lock so two publishing threads cannot deliver out of order
+        for (Listener listener : listeners) {
+            listener.onMediaStateChanged(next, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Subscribe; a current snapshot is delivered at once with CHANGED_ALL
+     */
+    public synchronized void subscribe(Listener listener) {
+        if (listeners.addIfAbsent(listener) && state != null) {
+            listener.onMediaStateChanged(state, CHANGED_ALL);
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized String getStats() {
+        return "published=" + published + ", unchanged=" + unchanged + ", subscribers=" + listeners.size();
+    }
+}
@@ -0,0 +1,120 @@
+package com.ddelpero.ridebridge.display;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The one place the tablet extrapolates the playback position. The phone only sends a
+ * position with its timestamp on discontinuities (see MediaState.positionAt); every surface
+ * asks this engine for the current value instead of running its own clock.
+ *
+ * Listeners get a tick whenever the displayed second changes, scheduled from the position,
+ * its timestamp and the playback speed rather than a fixed interval, plus one whenever the
+ * state changes. Nothing is scheduled while paused, at the end of the track, or while no
+ * listener is subscribed; with no listeners the engine also leaves MediaStateStore.
+ *
+ * Main thread only.
+ */
+public class PositionEngine implements MediaStateStore.Listener {
+
+    private static final String TAG = "RideBridge";
+    private static final int STATS_LOG_INTERVAL = 300;
+
+    public interface Listener {
+        /** Main thread; position is clamped to [0, duration] */
+        void onPositionTick(long position, long duration);
+    }
+
+    private static PositionEngine instance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new ArrayList<>();
+    private final Runnable tick = this::tick;
+    private MediaState state;
+
+    private long ticks = 0;
+    private long stateChanges = 0;
+
+    public static synchronized PositionEngine getInstance() {
+        if (instance == null) {
+            instance = new PositionEngine();
+        }
+        return instance;
+    }
+
+    private PositionEngine() {
+    }
+
+    /**
+     * Subscribe a visible surface; it gets the current position at once
+     */
+    public void subscribe(Listener listener) {
+        if (listeners.contains(listener)) return;
+        listeners.add(listener);
+        if (listeners.size() == 1) {
+            // Replays the current state through onMediaStateChanged
+            MediaStateStore.getInstance().subscribe(this);
+        } else if (state != null) {
+            listener.onPositionTick(currentPosition(), state.duration);
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        if (!listeners.remove(listener) || !listeners.isEmpty()) return;
+        MediaStateStore.getInstance().unsubscribe(this);
+        handler.removeCallbacks(tick);
+        state = null; // no longer kept up to date
+    }
+
+    /**
+     * Extrapolated position now, 0 before any state has arrived
+     */
+    public long currentPosition() {
+        MediaState current = state != null ? state : MediaStateStore.getInstance().getState();
+        return current != null ? current.positionAt(SystemClock.elapsedRealtime()) : 0;
+    }
+
+    // Publishing thread
+    @Override
+    public void onMediaStateChanged(MediaState newState, int changes) {
+        int relevant = MediaStateStore.CHANGED_POSITION | MediaStateStore.CHANGED_DURATION
+            | MediaStateStore.CHANGED_PLAYING;
+        if ((changes & relevant) == 0) return;
+        handler.post(() -> {
+            if (listeners.isEmpty()) return; // unsubscribed since
+            state = newState;
+            stateChanges++;
+            tick();
+        });
+    }
+
+    private void tick() {
+        handler.removeCallbacks(tick);
+        if (state == null || listeners.isEmpty()) return;
+        ticks++;
+
+        long now = SystemClock.elapsedRealtime();
+        long position = state.positionAt(now);
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onPositionTick(position, state.duration);
+        }
+        if (ticks % STATS_LOG_INTERVAL == 0) {
+            android.util.Log.d(TAG, "DISPLAY: Position engine " + getStats());
+        }
+
+        if (!state.isPlaying || state.playbackSpeed <= 0) return;
+        if (state.duration > 0 && position >= state.duration) return;
+        // Wake when the displayed second rolls over, at the current speed
+        long untilNextSecond = 1000 - position % 1000;
+        long delay = (long) Math.ceil(untilNextSecond / state.playbackSpeed);
+        handler.postAtTime(tick, SystemClock.uptimeMillis() + Math.max(1, delay));
+    }
+
+    public String getStats() {
+        return "ticks=" + ticks + ", stateChanges=" + stateChanges + ", listeners=" + listeners.size();
+    }
+}
@@ -0,0 +1,80 @@
+package com.ddelpero.ridebridge.display;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Upcoming queue items the phone pushed ahead of time (track text and a thumbnail), so a
+ * NEXT can update the display at once instead of waiting for the phone to notice the new
+ * track. The phone's own frames for the new track still follow and replace the guess.
+ */
+public class PrefetchCache {
+
+    public static final int MAX_ENTRIES = 8;
+
+    public static class Entry {
+        public final long queueId;
+        public final String track;
+        public final String artist;
+        public final Bitmap art;
+
+        public Entry(long queueId, String track, String artist, Bitmap art) {
+            this.queueId = queueId;
+            this.track = track;
+            this.artist = artist;
+            this.art = art;
+        }
+    }
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Queue ids after the current track, in play order
+    private long[] upcoming = new long[0];
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public synchronized void put(Entry entry) {
+        entries.put(entry.queueId, entry);
+    }
+
+    public synchronized void setUpcoming(long[] queueIds) {
+        upcoming = queueIds;
+    }
+
+    /**
+     * The item NEXT will play, if it was prefetched. Advances the upcoming list so a
+     * second NEXT before the phone reports back predicts the one after.
+     */
+    public synchronized Entry takeNext() {
+        if (upcoming.length == 0) {
+            misses++;
+            return null;
+        }
+        Entry entry = entries.get(upcoming[0]);
+        upcoming = Arrays.copyOfRange(upcoming, 1, upcoming.length);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        upcoming = new long[0];
+    }
+
+    public synchronized String getStats() {
+        return "entries=" + entries.size() + ", hits=" + hits + ", misses=" + misses;
+    }
+}
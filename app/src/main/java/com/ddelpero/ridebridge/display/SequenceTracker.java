@@ -0,0 +1,72 @@
+package com.ddelpero.ridebridge.display;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tracks the last applied "seq" per frame stream (the frame type) so a frame that arrives
+ * after a newer one on the same stream is dropped instead of overwriting newer state.
+ * Skipped sequence numbers are counted as gaps, late arrivals as stale.
+ *
+ * A keyframe carries a "seqs" baseline for the streams it replaces and is always applied;
+ * it also resynchronizes after the phone restarts its counters. Receiver thread only.
+ */
+public class SequenceTracker {
+
+    private final Map<String, Long> lastApplied = new HashMap<>();
+
+    private long accepted = 0;
+    private long stale = 0;
+    private long gaps = 0;
+
+    /**
+     * Whether the frame should be applied. Frames without a seq are always applied.
+     */
+    public boolean accept(JSONObject frame, String stream) {
+        if (frame.optBoolean("keyframe", false)) {
+            applyBaseline(frame.optJSONObject("seqs"));
+            record(stream, frame.optLong("seq", 0));
+            return true;
+        }
+        if (!frame.has("seq")) {
+            return true;
+        }
+
+        long seq = frame.optLong("seq", 0);
+        Long last = lastApplied.get(stream);
+        if (last != null && seq <= last) {
+            stale++;
+            return false;
+        }
+        if (last != null && seq > last + 1) {
+            gaps += seq - last - 1;
+        }
+        record(stream, seq);
+        return true;
+    }
+
+    private void applyBaseline(JSONObject baseline) {
+        if (baseline == null) return;
+        Iterator<String> streams = baseline.keys();
+        while (streams.hasNext()) {
+            String stream = streams.next();
+            lastApplied.put(stream, baseline.optLong(stream, 0));
+        }
+    }
+
+    private void record(String stream, long seq) {
+        accepted++;
+        lastApplied.put(stream, seq);
+    }
+
+    public long getGapCount() {
+        return gaps;
+    }
+
+    public String getStats() {
+        return "accepted=" + accepted + ", stale=" + stale + ", gaps=" + gaps;
+    }
+}
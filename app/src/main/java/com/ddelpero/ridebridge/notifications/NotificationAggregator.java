@@ -0,0 +1,200 @@
+package com.ddelpero.ridebridge.notifications;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ddelpero.ridebridge.core.ContentHash;
+
+/**
+ * Phone-side stage between the notification listener and the link. It remembers, per
+ * notification key, what the tablet has already been sent, and turns the listener's
+ * posts and removals into add / update / remove frames:
+ *
+ * - a repost with the same content is dropped;
+ * - new content for a key is held for WINDOW_MS, and everything that arrives for it
+ *   meanwhile leaves as one frame: an add the first time, afterwards an update carrying
+ *   only what changed (for MessagingStyle conversations, just the new messages);
+ * - a removed notification (read or dismissed on the phone) is withdrawn from the tablet,
+ *   or never sent at all if it goes away inside its window.
+ *
+ * At most one frame per notification per window reaches the tablet however busy a group
+ * chat gets. Main thread only.
+ */
+public class NotificationAggregator {
+
+    private static final String TAG = "RideBridge_Notif";
+    private static final long WINDOW_MS = 750;
+    private static final int MAX_TRACKED_KEYS = 64;
+    private static final int MAX_EVICTED_KEYS = 256;
+    private static final int STATS_LOG_INTERVAL = 50;
+
+    public interface Sink {
+        void onNotification(NotificationData data);
+    }
+
+    // One notification key: what the tablet has, and what waits for the window to close
+    private static class Tracked {
+        long content;
+        boolean sent;        // the tablet has an entry for this key
+        int count;           // messages that entry stands for
+        long newestMessage;  // time of the newest MessagingStyle message sent or pending
+
+        NotificationData pending;
+        List<NotificationData.Message> pendingMessages;
+        int pendingCount;
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flush = this::flush;
+    private final Sink sink;
+
+    private final LinkedHashMap<String, Tracked> tracked = new LinkedHashMap<String, Tracked>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Tracked> eldest) {
+            if (size() <= MAX_TRACKED_KEYS) return false;
+            if (eldest.getValue().sent) {
+                evicted.put(eldest.getKey(), Boolean.TRUE);
+            }
+            return true; // if still pending, flush() records it once sent
+        }
+    };
+    // Keys pushed out of tracked that the tablet still shows; their removal must still be sent
+    private final LinkedHashMap<String, Boolean> evicted = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_EVICTED_KEYS;
+        }
+    };
+    // Keys with changes waiting for the window to close, in arrival order
+    private final LinkedHashMap<String, Tracked> pending = new LinkedHashMap<>();
+
+    private long received = 0;
+    private long duplicates = 0;
+    private long coalesced = 0;
+    private long adds = 0;
+    private long updates = 0;
+    private long removes = 0;
+    private long withdrawn = 0;
+
+    public NotificationAggregator(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param key the StatusBarNotification key, stable across reposts
+     * @param messages the MessagingStyle messages the notification holds, oldest first,
+     *                 or null if it is not a conversation
+     */
+    public void offer(String key, NotificationData data, List<NotificationData.Message> messages) {
+        received++;
+        long newest = 0;
+        if (messages != null && !messages.isEmpty()) {
+            newest = messages.get(messages.size() - 1).time;
+        }
+        long content = ContentHash.ofText(data.sender, data.message) * 31 + newest;
+
+        Tracked entry = tracked.get(key);
+        if (entry == null) {
+            entry = new Tracked();
+            // Evicted earlier: the tablet still has it, so this is an update
+            entry.sent = evicted.remove(key) != null;
+            tracked.put(key, entry);
+        } else if (entry.content == content) {
+            duplicates++;
+            logStats();
+            return;
+        }
+        entry.content = content;
+
+        if (messages != null) {
+            for (NotificationData.Message message : messages) {
+                if (message.time <= entry.newestMessage) continue;
+                if (entry.pendingMessages == null) {
+                    entry.pendingMessages = new ArrayList<>();
+                }
+                entry.pendingMessages.add(message);
+                entry.newestMessage = message.time;
+                entry.pendingCount++;
+            }
+        } else {
+            entry.pendingCount++;
+        }
+
+        if (entry.pending != null) {
+            coalesced++;
+        } else {
+            pending.put(key, entry);
+            if (pending.size() == 1) {
+                handler.postDelayed(flush, WINDOW_MS);
+            }
+        }
+        entry.pending = data;
+    }
+
+    /**
+     * The notification was removed on the phone: withdraw it from the tablet
+     */
+    public void onRemoved(String key) {
+        Tracked entry = tracked.remove(key);
+        if (entry == null) {
+            entry = pending.get(key); // evicted while its changes waited
+        }
+        boolean sent = evicted.remove(key) != null || (entry != null && entry.sent);
+        if (pending.remove(key) != null && pending.isEmpty()) {
+            handler.removeCallbacks(flush);
+        }
+        if (!sent) {
+            if (entry != null) withdrawn++; // went away inside its window
+            return;
+        }
+        removes++;
+        sink.onNotification(NotificationData.removal(key));
+    }
+
+    private void flush() {
+        for (Map.Entry<String, Tracked> item : pending.entrySet()) {
+            Tracked entry = item.getValue();
+            NotificationData data = entry.pending;
+            data.key = item.getKey();
+            if (!entry.sent) {
+                data.op = NotificationData.OP_ADD;
+                entry.count = Math.max(1, entry.pendingCount);
+                entry.sent = true;
+                adds++;
+            } else {
+                data.op = NotificationData.OP_UPDATE;
+                data.messages = entry.pendingMessages;
+                entry.count += entry.pendingCount;
+                updates++;
+            }
+            data.count = entry.count;
+            entry.pending = null;
+            entry.pendingMessages = null;
+            entry.pendingCount = 0;
+            if (!tracked.containsKey(data.key)) {
+                evicted.put(data.key, Boolean.TRUE);
+            }
+            sink.onNotification(data);
+        }
+        pending.clear();
+        logStats();
+    }
+
+    private void logStats() {
+        if (received % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, "Aggregator " + getStats());
+        }
+    }
+
+    public String getStats() {
+        return "received=" + received + ", duplicates=" + duplicates + ", coalesced=" + coalesced
+            + ", adds=" + adds + ", updates=" + updates + ", removes=" + removes
+            + ", withdrawn=" + withdrawn + ", tracked=" + tracked.size() + ", evicted=" + evicted.size();
+    }
+}
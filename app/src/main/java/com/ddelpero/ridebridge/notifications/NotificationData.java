@@ -1,14 +1,47 @@
 package com.ddelpero.ridebridge.notifications;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One "notification" frame. Frames from the notification listener carry the phone's
+ * notification key and an op: "add" sends everything, "update" the changes for a key
+ * the tablet already has (for MessagingStyle conversations, only the messages that are
+ * new), "remove" just the key. Frames without a key (the settings test) are plain adds.
+ */
 public class NotificationData {
+    
+    public static final String OP_ADD = "add";
+    public static final String OP_UPDATE = "update";
+    public static final String OP_REMOVE = "remove";
+    
+    /** One MessagingStyle message */
+    public static class Message {
+        public final String from; // null when it is the conversation's sender
+        public final String text;
+        public final long time;
+        
+        public Message(String from, String text, long time) {
+            this.from = from;
+            this.text = text;
+            this.time = time;
+        }
+    }
+    
+    public String key; // phone's StatusBarNotification key; null for one-off notifications
+    public String op = OP_ADD;
     public String appPackage;
     public String appName;
     public String sender;
     public String message;
     public long timestamp;
+    public int count = 1; // messages this notification stands for (see NotificationAggregator)
+    public List<Message> messages; // update only: messages appended since the last frame
+    public long postedAt = 0; // elapsedRealtime the app posted it, phone side only; not sent
     
     public NotificationData(String appPackage, String appName, String sender, String message) {
         this.appPackage = appPackage;
@@ -18,25 +51,80 @@ public class NotificationData {
         this.timestamp = System.currentTimeMillis();
     }
     
+    /**
+     * Field-for-field copy; the message list is shared, it is never modified after sending
+     */
+    public NotificationData copy() {
+        NotificationData data = new NotificationData(appPackage, appName, sender, message);
+        data.key = key;
+        data.op = op;
+        data.timestamp = timestamp;
+        data.count = count;
+        data.messages = messages;
+        data.postedAt = postedAt;
+        return data;
+    }
+    
+    public static NotificationData removal(String key) {
+        NotificationData data = new NotificationData("", "", "", "");
+        data.key = key;
+        data.op = OP_REMOVE;
+        return data;
+    }
+    
     public JSONObject toJson() throws JSONException {
         JSONObject json = new JSONObject();
         json.put("type", "notification");
+        if (key != null) {
+            json.put("key", key);
+            json.put("op", op);
+        }
+        if (OP_REMOVE.equals(op)) {
+            return json;
+        }
         json.put("appPackage", appPackage);
         json.put("appName", appName);
         json.put("sender", sender);
-        json.put("message", message);
+        if (OP_UPDATE.equals(op) && messages != null && !messages.isEmpty()) {
+            JSONArray array = new JSONArray();
+            for (Message m : messages) {
+                JSONObject item = new JSONObject();
+                if (m.from != null) item.put("from", m.from);
+                item.put("text", m.text);
+                array.put(item);
+            }
+            json.put("messages", array);
+        } else {
+            json.put("message", message);
+        }
         json.put("timestamp", timestamp);
+        json.put("count", count);
         return json;
     }
     
     public static NotificationData fromJson(JSONObject json) throws JSONException {
+        String op = json.optString("op", OP_ADD);
+        if (OP_REMOVE.equals(op)) {
+            return removal(json.getString("key"));
+        }
         NotificationData data = new NotificationData(
             json.getString("appPackage"),
             json.getString("appName"),
             json.getString("sender"),
-            json.getString("message")
+            json.optString("message", "")
         );
-        data.timestamp = json.getLong("timestamp");
+        data.key = json.optString("key", null);
+        data.op = op;
+        data.timestamp = json.optLong("timestamp", data.timestamp);
+        data.count = json.optInt("count", 1);
+        JSONArray array = json.optJSONArray("messages");
+        if (array != null) {
+            data.messages = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                data.messages.add(new Message(item.optString("from", null), item.getString("text"), 0));
+            }
+        }
         return data;
     }
 }
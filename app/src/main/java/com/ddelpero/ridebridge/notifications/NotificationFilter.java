@@ -0,0 +1,61 @@
+package com.ddelpero.ridebridge.notifications;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which apps' notifications are forwarded, as an immutable set of package names compiled
+ * from the "notify_<package>" preferences that MainActivity and SettingsActivity write.
+ * The set is rebuilt when one of those preferences changes, so checking a notification is
+ * a single hash lookup with no preference access.
+ */
+public class NotificationFilter {
+
+    private static final String TAG = "RideBridge_Notif";
+    private static final String PREFS_NAME = "RideBridgePrefs";
+    static final String KEY_PREFIX = "notify_";
+
+    private final SharedPreferences prefs;
+    private volatile Set<String> enabled = Collections.emptySet();
+
+    // SharedPreferences holds listeners weakly, so keep this one referenced
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsListener = (sharedPrefs, key) -> {
+        if (key == null || key.startsWith(KEY_PREFIX)) {
+            rebuild();
+        }
+    };
+
+    public NotificationFilter(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public void start() {
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener);
+        rebuild();
+    }
+
+    public void stop() {
+        prefs.unregisterOnSharedPreferenceChangeListener(prefsListener);
+    }
+
+    public boolean isEnabled(String packageName) {
+        return enabled.contains(packageName);
+    }
+
+    private void rebuild() {
+        Set<String> packages = new HashSet<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(KEY_PREFIX) && Boolean.TRUE.equals(entry.getValue())) {
+                packages.add(entry.getKey().substring(KEY_PREFIX.length()));
+            }
+        }
+        enabled = Collections.unmodifiableSet(packages);
+        Log.d(TAG, "Forwarding notifications from " + packages.size() + " apps: " + packages);
+    }
+}
@@ -0,0 +1,99 @@
+package com.ddelpero.ridebridge.notifications;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * In-process path from RideBridgeNotificationListener to the running RideBridgeService.
+ * Both live in the app's process, so while the service is up it registers a Sink here and
+ * the listener hands NotificationData over directly: no Intent, no trip through
+ * system_server, no re-parsing. Without the service there is no link to send over, so
+ * deliver() returns false and the notification is dropped.
+ *
+ * Also keeps the latency from the app posting a notification to its frame being written
+ * to the link, including time spent in NotificationOutbox.
+ */
+public class NotificationHandoff {
+
+    private static final String TAG = "RideBridge_Notif";
+    private static final int STATS_LOG_INTERVAL = 20;
+
+    public interface Sink {
+        /** Main thread */
+        void onNotification(NotificationData data);
+    }
+
+    private static final NotificationHandoff instance = new NotificationHandoff();
+
+    private volatile Sink sink;
+
+    // Guarded by this
+    private long direct = 0;
+    private long dropped = 0;
+    private long forwarded = 0;
+    private long totalLatencyMs = 0;
+    private long maxLatencyMs = 0;
+
+    public static NotificationHandoff getInstance() {
+        return instance;
+    }
+
+    private NotificationHandoff() {
+    }
+
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Unregister, unless another sink replaced this one meanwhile
+     */
+    public void clearSink(Sink sink) {
+        if (this.sink == sink) {
+            this.sink = null;
+        }
+    }
+
+    /**
+     * @return false if no service is registered; nothing was delivered
+     */
+    public boolean deliver(NotificationData data) {
+        Sink current = sink;
+        if (current == null) {
+            synchronized (this) {
+                dropped++;
+            }
+            return false;
+        }
+        synchronized (this) {
+            direct++;
+        }
+        current.onNotification(data);
+        return true;
+    }
+
+    /**
+     * Called once the notification's frame was written to the link; any thread
+     */
+    public void onForwarded(NotificationData data) {
+        if (data.postedAt <= 0) return;
+        long latency = SystemClock.elapsedRealtime() - data.postedAt;
+        boolean logNow;
+        synchronized (this) {
+            forwarded++;
+            totalLatencyMs += latency;
+            maxLatencyMs = Math.max(maxLatencyMs, latency);
+            logNow = forwarded % STATS_LOG_INTERVAL == 1;
+        }
+        Log.d(TAG, "Notification sent " + latency + "ms after post");
+        if (logNow) {
+            Log.d(TAG, "Handoff " + getStats());
+        }
+    }
+
+    public synchronized String getStats() {
+        long average = forwarded > 0 ? totalLatencyMs / forwarded : 0;
+        return "direct=" + direct + ", dropped=" + dropped + ", forwarded=" + forwarded
+            + ", avgLatencyMs=" + average + ", maxLatencyMs=" + maxLatencyMs;
+    }
+}
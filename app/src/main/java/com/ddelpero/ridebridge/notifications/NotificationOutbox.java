@@ -0,0 +1,395 @@
+package com.ddelpero.ridebridge.notifications;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.ddelpero.ridebridge.core.BluetoothManager;
+
+/**
+ * Phone-side store-and-forward for notification frames. A frame stays here until
+ * BluetoothManager reports it written to the link, so a dropout delays notifications
+ * instead of losing them:
+ *
+ * - the queue is ordered by priority (calls first), then age, holds at most MAX_ENTRIES
+ *   and drops frames older than TTL_MS unsent;
+ * - a remove frame takes out the adds and updates still queued for its key; if that
+ *   cancelled the key's add, the tablet never had it and the remove is dropped too,
+ *   otherwise it is always sent;
+ * - frames go out one at a time, at least MIN_SEND_INTERVAL_MS apart, so a backlog
+ *   flushed on reconnect interleaves with media frames instead of starving them;
+ * - after a failed send nothing is attempted for a while (RETRY_MIN_MS, doubling to
+ *   RETRY_MAX_MS), however many frames arrive meanwhile; a new connection ends the wait.
+ *
+ * The queue is kept in an append-only journal ("put" and "done" records) that is replayed
+ * on startup and compacted now and then, so queued frames also survive a restart.
+ * close() stops sending at once; whatever is still queued waits in the journal for the
+ * next start. All state lives on the outbox thread.
+ */
+public class NotificationOutbox {
+
+    private static final String TAG = "RideBridge_Notif";
+    private static final String JOURNAL_NAME = "notification_outbox.log";
+    private static final int MAX_ENTRIES = 32;
+    private static final long TTL_MS = 10 * 60 * 1000L;
+    private static final long MIN_SEND_INTERVAL_MS = 250;
+    private static final long RETRY_MIN_MS = 2000;
+    private static final long RETRY_MAX_MS = 60 * 1000L;
+    private static final int COMPACT_AFTER_RECORDS = 128;
+
+    private static class Entry {
+        final long id;
+        final NotificationData data;
+        final int priority;
+        final long queuedAt; // wall clock, so it stays meaningful across restarts
+
+        Entry(long id, NotificationData data, int priority, long queuedAt) {
+            this.id = id;
+            this.data = data;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final BluetoothManager bluetoothManager;
+    private final File journalFile;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+        runnable -> new Thread(runnable, "RideBridge-Outbox"));
+    private final Runnable drain = this::drain;
+    private final Runnable sessionStartedListener = this::onSessionStarted;
+
+    private volatile boolean closed = false;
+    private final List<Entry> queue = new ArrayList<>();
+    private Entry inFlight;
+    private ScheduledFuture<?> scheduledDrain;
+    private long lastSentAt = -MIN_SEND_INTERVAL_MS; // elapsedRealtime
+    private long retryDelayMs = RETRY_MIN_MS;
+    private long retryNotBefore = 0; // elapsedRealtime; no send attempt before it
+    private BufferedWriter journal;
+    private int journalRecords = 0;
+    private long nextId = 0;
+
+    private long queued = 0;
+    private long sent = 0;
+    private long failures = 0;
+    private long expired = 0;
+    private long evicted = 0;
+    private long cancelled = 0;
+    private long restored = 0;
+
+    public NotificationOutbox(Context context, BluetoothManager bluetoothManager) {
+        this.bluetoothManager = bluetoothManager;
+        this.journalFile = new File(context.getFilesDir(), JOURNAL_NAME);
+        // A pending retry must not keep the thread (and sends) alive after close()
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        bluetoothManager.addSessionStartedListener(sessionStartedListener);
+        executor.execute(this::restore);
+    }
+
+    public void enqueue(NotificationData data) {
+        execute(() -> add(data));
+    }
+
+    public void close() {
+        closed = true;
+        bluetoothManager.removeSessionStartedListener(sessionStartedListener);
+        execute(() -> {
+            closeJournal();
+            Log.d(TAG, "Outbox " + getStats());
+        });
+        executor.shutdown();
+    }
+
+    // Outbox thread from here on
+
+    private void add(NotificationData data) {
+        // Queued removes are kept even when a new add follows: a later remove may cancel
+        // that add, and the earlier remove must still withdraw what the tablet shows
+        if (data.key != null && NotificationData.OP_REMOVE.equals(data.op) && cancelQueued(data.key)) {
+            return; // the tablet never had it
+        }
+
+        Entry entry = new Entry(nextId++, data, NotificationPresenter.priorityOf(data), System.currentTimeMillis());
+        insert(entry);
+        appendPut(entry);
+        queued++;
+        // Once closed it is only journaled, for the next start; during a backoff the
+        // scheduled retry sends it
+        if (!closed && SystemClock.elapsedRealtime() >= retryNotBefore) {
+            drain();
+        }
+    }
+
+    /**
+     * Ahead of lower priorities, behind earlier entries of the same priority. When full,
+     * the oldest frame of the lowest priority (other than the one in flight) is dropped.
+     */
+    private void insert(Entry entry) {
+        int index = 0;
+        while (index < queue.size() && queue.get(index).priority >= entry.priority) {
+            index++;
+        }
+        queue.add(index, entry);
+        if (queue.size() > MAX_ENTRIES) {
+            int lowest = queue.get(queue.size() - 1).priority;
+            Entry oldest = null;
+            for (Entry candidate : queue) {
+                if (candidate == inFlight || candidate.priority != lowest) continue;
+                if (oldest == null || candidate.queuedAt < oldest.queuedAt) oldest = candidate;
+            }
+            if (oldest != null) {
+                queue.remove(oldest);
+                appendDone(oldest);
+                evicted++;
+            }
+        }
+    }
+
+    /**
+     * Take out the adds and updates still queued (not in flight) for a key
+     * @return whether one of them was the key's add, so the tablet never had it
+     */
+    private boolean cancelQueued(String key) {
+        boolean cancelledAdd = false;
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry == inFlight || !key.equals(entry.data.key)) continue;
+            if (NotificationData.OP_REMOVE.equals(entry.data.op)) continue;
+            cancelledAdd |= NotificationData.OP_ADD.equals(entry.data.op);
+            it.remove();
+            appendDone(entry);
+            cancelled++;
+        }
+        return cancelledAdd;
+    }
+
+    private void drain() {
+        if (inFlight != null || closed) return;
+        long backoff = retryNotBefore - SystemClock.elapsedRealtime();
+        if (backoff > 0) {
+            scheduleDrain(backoff); // also covers the retry firing a little early
+            return;
+        }
+        cancelScheduledDrain();
+
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.queuedAt > TTL_MS) {
+                it.remove();
+                appendDone(entry);
+                expired++;
+            }
+        }
+        if (queue.isEmpty()) {
+            if (journalRecords >= COMPACT_AFTER_RECORDS) compact();
+            return;
+        }
+
+        long wait = lastSentAt + MIN_SEND_INTERVAL_MS - SystemClock.elapsedRealtime();
+        if (wait > 0) {
+            scheduleDrain(wait);
+            return;
+        }
+
+        Entry entry = queue.get(0);
+        JSONObject frame;
+        try {
+            frame = entry.data.toJson();
+        } catch (JSONException e) {
+            Log.e(TAG, "Outbox dropping unencodable notification: " + e.getMessage());
+            queue.remove(0);
+            appendDone(entry);
+            drain();
+            return;
+        }
+        inFlight = entry;
+        lastSentAt = SystemClock.elapsedRealtime();
+        bluetoothManager.sendFrame(frame, null, result -> execute(() -> onSendResult(entry, result)));
+    }
+
+    private void onSendResult(Entry entry, boolean delivered) {
+        inFlight = null;
+        if (!delivered) {
+            failures++;
+            Log.d(TAG, "Outbox send failed, " + queue.size() + " waiting; retry in " + retryDelayMs + "ms");
+            retryNotBefore = SystemClock.elapsedRealtime() + retryDelayMs;
+            scheduleDrain(retryDelayMs);
+            retryDelayMs = Math.min(retryDelayMs * 2, RETRY_MAX_MS);
+            return;
+        }
+
+        sent++;
+        retryDelayMs = RETRY_MIN_MS;
+        queue.remove(entry); // unless a remove took it out meanwhile
+        appendDone(entry);
+        NotificationHandoff.getInstance().onForwarded(entry.data);
+        drain();
+    }
+
+    private void onSessionStarted() {
+        execute(() -> {
+            retryDelayMs = RETRY_MIN_MS;
+            retryNotBefore = 0;
+            if (!queue.isEmpty()) {
+                Log.d(TAG, "Outbox link up, flushing " + queue.size() + " notifications");
+            }
+            drain();
+        });
+    }
+
+    private void scheduleDrain(long delayMs) {
+        cancelScheduledDrain();
+        if (closed) return;
+        try {
+            scheduledDrain = executor.schedule(drain, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Outbox closed, not scheduling a drain");
+        }
+    }
+
+    private void cancelScheduledDrain() {
+        if (scheduledDrain != null) {
+            scheduledDrain.cancel(false);
+            scheduledDrain = null;
+        }
+    }
+
+    // Also called from the send thread, which may report after close()
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Outbox closed, dropping task");
+        }
+    }
+
+    // Journal: one JSON record per line, {"put": id, "at": ms, "frame": {...}} or {"done": id}
+
+    private void restore() {
+        LinkedHashMap<Long, Entry> live = new LinkedHashMap<>();
+        if (journalFile.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(journalFile))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    try {
+                        JSONObject record = new JSONObject(line);
+                        if (record.has("put")) {
+                            NotificationData data = NotificationData.fromJson(record.getJSONObject("frame"));
+                            long id = record.getLong("put");
+                            live.put(id, new Entry(id, data, NotificationPresenter.priorityOf(data), record.getLong("at")));
+                            nextId = Math.max(nextId, id + 1);
+                        } else if (record.has("done")) {
+                            live.remove(record.getLong("done"));
+                        }
+                    } catch (JSONException e) {
+                        // A record cut short by the process dying; nothing after it was written
+                        Log.w(TAG, "Outbox skipping bad journal record: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Outbox journal read failed: " + e.getMessage());
+            }
+        }
+        for (Entry entry : live.values()) {
+            insert(entry);
+        }
+        restored = queue.size();
+        compact();
+        if (restored > 0) {
+            Log.d(TAG, "Outbox restored " + restored + " notifications");
+            drain();
+        }
+    }
+
+    // Rewrite the journal with only the queued entries
+    private void compact() {
+        closeJournal();
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        journalRecords = 0;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(tmp))) {
+            for (Entry entry : queue) {
+                out.write(putRecord(entry));
+                out.newLine();
+                journalRecords++;
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Outbox journal compaction failed: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(journalFile)) {
+            Log.w(TAG, "Outbox could not replace journal");
+        }
+    }
+
+    private void appendPut(Entry entry) {
+        try {
+            append(putRecord(entry));
+        } catch (JSONException e) {
+            Log.w(TAG, "Outbox journal encode failed: " + e.getMessage());
+        }
+    }
+
+    private void appendDone(Entry entry) {
+        append("{\"done\":" + entry.id + "}");
+    }
+
+    private static String putRecord(Entry entry) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("put", entry.id);
+        record.put("at", entry.queuedAt);
+        record.put("frame", entry.data.toJson());
+        return record.toString();
+    }
+
+    private void append(String record) {
+        try {
+            if (journal == null) {
+                journal = new BufferedWriter(new FileWriter(journalFile, true));
+            }
+            journal.write(record);
+            journal.newLine();
+            journal.flush();
+            journalRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "Outbox journal write failed: " + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+        journal = null;
+    }
+
+    public String getStats() {
+        return "queued=" + queued + ", sent=" + sent + ", failures=" + failures + ", expired=" + expired
+            + ", evicted=" + evicted + ", cancelled=" + cancelled + ", restored=" + restored
+            + ", waiting=" + queue.size();
+    }
+}
@@ -3,7 +3,7 @@ package com.ddelpero.ridebridge.notifications;
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.content.Context;
-import android.graphics.drawable.Drawable;
+import android.graphics.Bitmap;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -14,11 +14,13 @@ import android.widget.TextView;
 import android.util.Log;
 
 import com.ddelpero.ridebridge.R;
+import com.ddelpero.ridebridge.display.AppIconResolver;
 
 public class NotificationOverlay extends FrameLayout {
     
     private static final String TAG = "RideBridge_NotifOverlay";
     private static final float SWIPE_THRESHOLD = 100f;
+    private static final long AUTO_DISMISS_MS = 5000;
     
     private ImageView appIcon;
     private TextView senderName;
@@ -26,6 +28,10 @@ public class NotificationOverlay extends FrameLayout {
     private NotificationData currentNotification;
     private float startX;
     private OnDismissListener onDismissListener;
+    private String iconPackage; // package whose icon appIcon currently shows
+    private boolean dismissing = false;
+    // One instance, so removeCallbacks() cancels what postDelayed() scheduled
+    private final Runnable dismissRunnable = this::dismissNotification;
     
     public interface OnDismissListener {
         void onDismiss();
@@ -56,35 +62,90 @@ public class NotificationOverlay extends FrameLayout {
     }
     
     public void showNotification(NotificationData data) {
-        this.currentNotification = data;
-        
-        senderName.setText(data.sender);
-        messageText.setText(data.message);
-        
-        // Set app icon based on package
-        setAppIcon(data.appPackage);
+        showNotification(data, AUTO_DISMISS_MS);
+    }
+    
+    /**
+     * Show data, fading in; replaces whatever this overlay showed, even mid-animation
+     */
+    public void showNotification(NotificationData data, long durationMs) {
+        // A dismiss still animating must neither finish nor report itself
+        animate().setListener(null).cancel();
+        dismissing = false;
+        setTranslationX(0f);
         
+        bind(data);
         setAlpha(0f);
         setVisibility(View.VISIBLE);
         animate().alpha(1f).setDuration(300).start();
         
         Log.d(TAG, "Showing notification: " + data.sender + " - " + data.message);
         
-        // Auto-dismiss after 5 seconds
-        postDelayed(this::dismissNotification, 5000);
+        // Auto-dismiss after durationMs
+        removeCallbacks(dismissRunnable);
+        postDelayed(dismissRunnable, durationMs);
+    }
+    
+    /**
+     * Replace the content of a visible notification in place (e.g. the same sender wrote
+     * again) and restart its timer, without animating
+     */
+    public void updateNotification(NotificationData data, long durationMs) {
+        if (dismissing || getVisibility() != View.VISIBLE) {
+            showNotification(data, durationMs);
+            return;
+        }
+        bind(data);
+        removeCallbacks(dismissRunnable);
+        postDelayed(dismissRunnable, durationMs);
+    }
+    
+    public boolean isShowing() {
+        return getVisibility() == View.VISIBLE && !dismissing;
+    }
+    
+    private void bind(NotificationData data) {
+        this.currentNotification = data;
+        // A batch from the phone shows the latest message and how many it covers
+        senderName.setText(data.count > 1 ? data.sender + " (" + data.count + ")" : data.sender);
+        messageText.setText(data.message);
+        
+        // Set app icon based on package; unchanged when the app is the same
+        if (!data.appPackage.equals(iconPackage)) {
+            setAppIcon(data.appPackage);
+            iconPackage = data.appPackage;
+        }
     }
     
     private void setAppIcon(String appPackage) {
-        try {
-            Drawable icon = getContext().getPackageManager().getApplicationIcon(appPackage);
-            appIcon.setImageDrawable(icon);
-        } catch (Exception e) {
-            Log.e(TAG, "Error loading app icon: " + e.getMessage());
+        // Usually an app of the phone's; the resolver fetches unknown icons in the background
+        Bitmap icon = AppIconResolver.getInstance(getContext()).get(appPackage);
+        if (icon != null) {
+            appIcon.setImageBitmap(icon);
+        } else {
             // Use default icon - circle_white as placeholder
             appIcon.setImageResource(R.drawable.circle_white);
         }
     }
     
+    private final AppIconResolver.Listener iconListener = (appPackage, icon) -> {
+        if (appPackage.equals(iconPackage)) {
+            appIcon.setImageBitmap(icon);
+        }
+    };
+    
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        AppIconResolver.getInstance(getContext()).addListener(iconListener);
+    }
+    
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        AppIconResolver.getInstance(getContext()).removeListener(iconListener);
+    }
+    
     private boolean handleTouch(View v, MotionEvent event) {
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
@@ -111,11 +172,15 @@ public class NotificationOverlay extends FrameLayout {
     }
     
     public void dismissNotification() {
-        removeCallbacks(this::dismissNotification);
+        removeCallbacks(dismissRunnable);
+        if (dismissing) return;
+        dismissing = true;
         animate().alpha(0f).translationX(getWidth()).setDuration(300)
             .setListener(new AnimatorListenerAdapter() {
                 @Override
                 public void onAnimationEnd(Animator animation) {
+                    animate().setListener(null);
+                    dismissing = false;
                     setVisibility(View.GONE);
                     setTranslationX(0f);
                     setAlpha(1f);
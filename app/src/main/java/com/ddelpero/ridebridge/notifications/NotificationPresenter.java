@@ -0,0 +1,248 @@
+package com.ddelpero.ridebridge.notifications;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Shows incoming notifications on an activity one at a time, through a single reused
+ * NotificationOverlay attached to the activity's content view.
+ *
+ * Notifications wait in a bounded queue ordered by priority. An update for a notification
+ * key, or a new message from a sender, that is on screen or already queued replaces it
+ * instead of adding another entry, so a group-chat burst costs one slot per sender. A
+ * notification the phone withdrew leaves the screen or the queue. A higher-priority
+ * notification (a call) replaces a lower one on screen at once; everything else starts at
+ * most once per MIN_INTERVAL_MS, and entries that waited longer than MAX_AGE_MS are dropped.
+ *
+ * Main thread only.
+ */
+public class NotificationPresenter {
+
+    private static final String TAG = "RideBridge_NotifOverlay";
+
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_CALL = 1;
+
+    private static final int MAX_QUEUED = 8;
+    private static final long MIN_INTERVAL_MS = 1500;
+    private static final long MAX_AGE_MS = 30000;
+    private static final long DISPLAY_MS = 5000;
+    private static final long DISPLAY_BUSY_MS = 3000; // shorter while others are waiting
+
+    private static class Pending {
+        NotificationData data;
+        final int priority;
+        final long queuedAt;
+
+        Pending(NotificationData data, int priority, long queuedAt) {
+            this.data = data;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final Activity activity;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable pump = this::pump;
+    private final List<Pending> queue = new ArrayList<>();
+    private NotificationOverlay overlay;
+    private Pending showing;
+    private long lastShownAt = -MIN_INTERVAL_MS;
+
+    private long received = 0;
+    private long shown = 0;
+    private long collapsed = 0;
+    private long preempted = 0;
+    private long dropped = 0;
+    private long withdrawn = 0;
+
+    public NotificationPresenter(Activity activity) {
+        this.activity = activity;
+    }
+
+    public void enqueue(NotificationData data) {
+        received++;
+        long now = SystemClock.elapsedRealtime();
+        int priority = priorityOf(data);
+
+        // Same notification or sender on screen: update it in place
+        if (showing != null && collapses(showing.data, data) && overlay.isShowing()) {
+            collapsed++;
+            merge(showing, data);
+            overlay.updateNotification(showing.data, displayTime());
+            return;
+        }
+        // Already waiting: keep its place, show the newest content
+        for (Pending pending : queue) {
+            if (collapses(pending.data, data)) {
+                collapsed++;
+                merge(pending, data);
+                return;
+            }
+        }
+
+        Pending entry = new Pending(data, priority, now);
+        if (showing != null && priority > showing.priority && overlay.isShowing()) {
+            // Preempt; what was showing goes back to the front of its priority
+            preempted++;
+            insert(showing, true);
+            present(entry, now);
+            return;
+        }
+        insert(entry, false);
+        pump();
+    }
+
+    /**
+     * The phone withdrew this notification (read or dismissed there)
+     */
+    public void remove(String key) {
+        Iterator<Pending> it = queue.iterator();
+        while (it.hasNext()) {
+            if (key.equals(it.next().data.key)) {
+                it.remove();
+                withdrawn++;
+            }
+        }
+        if (showing != null && key.equals(showing.data.key) && overlay.isShowing()) {
+            withdrawn++;
+            overlay.dismissNotification(); // the next one follows via onOverlayDismissed
+        }
+    }
+
+    /**
+     * Drop everything, e.g. when the activity goes away
+     */
+    public void clear() {
+        handler.removeCallbacks(pump);
+        queue.clear();
+        showing = null;
+        if (overlay != null) {
+            overlay.setOnDismissListener(null);
+            ViewGroup parent = (ViewGroup) overlay.getParent();
+            if (parent != null) parent.removeView(overlay);
+            overlay = null;
+        }
+        Log.d(TAG, "Presenter " + getStats());
+    }
+
+    /**
+     * Ahead of lower priorities; behind earlier entries of the same priority, or ahead of
+     * them when atFront (a preempted entry resumes first). When full, the entry that has
+     * waited longest among the lowest priority is dropped.
+     */
+    private void insert(Pending entry, boolean atFront) {
+        int index = 0;
+        while (index < queue.size() && (queue.get(index).priority > entry.priority
+                || (!atFront && queue.get(index).priority == entry.priority))) {
+            index++;
+        }
+        queue.add(index, entry);
+        if (queue.size() > MAX_QUEUED) {
+            int lowest = queue.get(queue.size() - 1).priority;
+            int oldest = -1;
+            for (int i = 0; i < queue.size(); i++) {
+                Pending pending = queue.get(i);
+                if (pending.priority == lowest && (oldest < 0 || pending.queuedAt < queue.get(oldest).queuedAt)) {
+                    oldest = i;
+                }
+            }
+            queue.remove(oldest);
+            dropped++;
+        }
+    }
+
+    private void pump() {
+        handler.removeCallbacks(pump);
+        if (showing != null || queue.isEmpty()) return;
+
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Pending> it = queue.iterator();
+        while (it.hasNext()) {
+            if (now - it.next().queuedAt > MAX_AGE_MS) {
+                it.remove();
+                dropped++;
+            }
+        }
+        if (queue.isEmpty()) return;
+
+        long wait = lastShownAt + MIN_INTERVAL_MS - now;
+        if (wait > 0) {
+            handler.postDelayed(pump, wait);
+            return;
+        }
+        present(queue.remove(0), now);
+    }
+
+    private void present(Pending entry, long now) {
+        showing = entry;
+        lastShownAt = now;
+        shown++;
+        ensureOverlay().showNotification(entry.data, displayTime());
+    }
+
+    private void onOverlayDismissed() {
+        showing = null;
+        pump();
+    }
+
+    private long displayTime() {
+        return queue.isEmpty() ? DISPLAY_MS : DISPLAY_BUSY_MS;
+    }
+
+    private NotificationOverlay ensureOverlay() {
+        if (overlay == null) {
+            overlay = new NotificationOverlay(activity);
+            overlay.setOnDismissListener(this::onOverlayDismissed);
+            FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.TOP);
+            ViewGroup content = activity.findViewById(android.R.id.content);
+            content.addView(overlay, params);
+        }
+        return overlay;
+    }
+
+    private static boolean collapses(NotificationData a, NotificationData b) {
+        if (a.key != null && a.key.equals(b.key)) return true;
+        return Objects.equals(a.appPackage, b.appPackage) && Objects.equals(a.sender, b.sender);
+    }
+
+    // An update for the same key already carries the total count; other notifications add up
+    // in a copy, since the caller (NotificationTable) keeps the instance it handed over
+    private static void merge(Pending entry, NotificationData data) {
+        if (entry.data.key == null || !entry.data.key.equals(data.key)) {
+            NotificationData merged = data.copy();
+            merged.count += entry.data.count;
+            data = merged;
+        }
+        entry.data = data;
+    }
+
+    // Also orders NotificationOutbox on the phone
+    static int priorityOf(NotificationData data) {
+        switch (data.appPackage) {
+            case "com.android.phone":
+            case "com.google.android.dialer":
+                return PRIORITY_CALL;
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }
+
+    public String getStats() {
+        return "received=" + received + ", shown=" + shown + ", collapsed=" + collapsed
+            + ", preempted=" + preempted + ", dropped=" + dropped + ", withdrawn=" + withdrawn
+            + ", queued=" + queue.size();
+    }
+}
@@ -0,0 +1,60 @@
+package com.ddelpero.ridebridge.notifications;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tablet-side counterpart of NotificationAggregator: the notifications the phone
+ * currently has, by key. Applying an update frame yields the complete notification (the
+ * earlier fields plus what changed, the newest appended message as its text), so
+ * consumers always get something they can show as is. Entries are never modified in
+ * place; a merged copy replaces them, since the UI may still hold the previous one.
+ *
+ * Used from the receive thread only.
+ */
+public class NotificationTable {
+
+    private static final int MAX_ENTRIES = 64;
+
+    private final LinkedHashMap<String, NotificationData> entries = new LinkedHashMap<String, NotificationData>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NotificationData> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return the notification to show for an add or update frame; for a remove frame the
+     *         entry it withdrew, or null if the tablet did not have it
+     */
+    public NotificationData apply(NotificationData frame) {
+        if (frame.key == null) return frame; // one-off, not tracked
+
+        if (NotificationData.OP_REMOVE.equals(frame.op)) {
+            return entries.remove(frame.key);
+        }
+
+        NotificationData merged = new NotificationData(frame.appPackage, frame.appName, frame.sender, frame.message);
+        merged.key = frame.key;
+        merged.timestamp = frame.timestamp;
+        merged.count = frame.count;
+        if (frame.messages != null && !frame.messages.isEmpty()) {
+            NotificationData.Message last = frame.messages.get(frame.messages.size() - 1);
+            merged.message = last.from != null ? last.from + ": " + last.text : last.text;
+        } else if (frame.message.isEmpty()) {
+            NotificationData previous = entries.get(frame.key);
+            if (previous != null) merged.message = previous.message;
+        }
+        merged.op = entries.containsKey(frame.key) ? NotificationData.OP_UPDATE : NotificationData.OP_ADD;
+        entries.put(frame.key, merged);
+        return merged;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
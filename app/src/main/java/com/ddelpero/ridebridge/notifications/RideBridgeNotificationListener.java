@@ -1,8 +1,6 @@
 package com.ddelpero.ridebridge.notifications;
 
 import android.app.Notification;
-import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Build;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
@@ -16,21 +14,30 @@ public class RideBridgeNotificationListener extends NotificationListenerService
     private static final String TAG = "RideBridge_Notif";
     private RideBridgeService service;
     private BluetoothManager bluetoothManager;
+    private final NotificationAggregator aggregator = new NotificationAggregator(this::sendNotification);
+    private NotificationFilter filter;
+    private final java.util.Map<String, String> appLabels = new java.util.HashMap<>();
     
-    // Apps to monitor
-    private static final String[] MONITORED_APPS = {
-        "com.android.phone",           // Phone calls
-        "com.android.mms",             // SMS
-        "com.facebook.orca",           // Facebook Messenger
-        "com.whatsapp"                 // WhatsApp
-    };
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        filter = new NotificationFilter(this);
+        filter.start();
+    }
+    
+    @Override
+    public void onDestroy() {
+        filter.stop();
+        super.onDestroy();
+    }
     
     @Override
     public void onNotificationPosted(StatusBarNotification sbn) {
         if (sbn == null) return;
         
+        // Only apps enabled in settings are forwarded
         String packageName = sbn.getPackageName();
-        if (!shouldMonitor(packageName)) return;
+        if (!filter.isEnabled(packageName)) return;
         
         Notification notification = sbn.getNotification();
         if (notification == null) return;
@@ -42,25 +49,18 @@ public class RideBridgeNotificationListener extends NotificationListenerService
         
         Log.d(TAG, "Notification from " + appName + ": " + sender + " - " + message);
         
-        // Check if this app is enabled for forwarding
-        if (isAppEnabled(packageName)) {
-            NotificationData data = new NotificationData(packageName, appName, sender, message);
-            sendNotification(data);
-        }
+        NotificationData data = new NotificationData(packageName, appName, sender, message);
+        // Post time on the elapsed clock, for the handoff latency stats
+        data.postedAt = android.os.SystemClock.elapsedRealtime() - (System.currentTimeMillis() - sbn.getPostTime());
+        // Reposts are dropped, bursts batched and updates reduced to what changed
+        aggregator.offer(sbn.getKey(), data, extractMessages(notification, sender));
     }
     
     @Override
     public void onNotificationRemoved(StatusBarNotification sbn) {
-        // Optional: Handle notification removal
-    }
-    
-    private boolean shouldMonitor(String packageName) {
-        for (String app : MONITORED_APPS) {
-            if (app.equals(packageName)) {
-                return true;
-            }
+        if (sbn != null) {
+            aggregator.onRemoved(sbn.getKey());
         }
-        return false;
     }
     
     private String extractSender(Notification notification, String packageName) {
@@ -85,35 +85,66 @@ public class RideBridgeNotificationListener extends NotificationListenerService
         return "";
     }
     
+    /**
+     * A MessagingStyle conversation's messages from others, oldest first; null if the
+     * notification is not a conversation. Reads the bundles behind EXTRA_MESSAGES using
+     * the framework's keys for Message ("text", "time", "sender", "sender_person").
+     */
+    private java.util.List<NotificationData.Message> extractMessages(Notification notification, String conversation) {
+        if (notification.extras == null) return null;
+        android.os.Parcelable[] bundles = notification.extras.getParcelableArray(Notification.EXTRA_MESSAGES);
+        if (bundles == null) return null;
+        
+        java.util.List<NotificationData.Message> messages = new java.util.ArrayList<>(bundles.length);
+        for (android.os.Parcelable parcelable : bundles) {
+            if (!(parcelable instanceof android.os.Bundle)) continue;
+            android.os.Bundle bundle = (android.os.Bundle) parcelable;
+            CharSequence text = bundle.getCharSequence("text");
+            CharSequence from = bundle.getCharSequence("sender");
+            if (from == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                android.app.Person person = bundle.getParcelable("sender_person");
+                if (person != null) from = person.getName();
+            }
+            // No sender is the phone's user replying; the tablet only shows incoming messages
+            if (text == null || from == null) continue;
+            String name = from.toString();
+            messages.add(new NotificationData.Message(
+                name.equals(conversation) ? null : name, text.toString(), bundle.getLong("time")));
+        }
+        return messages;
+    }
+    
     private String extractAppName(String packageName) {
         switch (packageName) {
             case "com.android.phone": return "Phone";
             case "com.android.mms": return "Messages";
             case "com.facebook.orca": return "Messenger";
             case "com.whatsapp": return "WhatsApp";
-            default: return packageName;
+            default: return appLabel(packageName);
         }
     }
     
-    private boolean isAppEnabled(String packageName) {
-        SharedPreferences prefs = getSharedPreferences("RideBridgePrefs", Context.MODE_PRIVATE);
-        return prefs.getBoolean("notify_" + packageName, false);
+    // Any other app enabled in SettingsActivity: its launcher label, looked up once
+    private String appLabel(String packageName) {
+        String label = appLabels.get(packageName);
+        if (label == null) {
+            try {
+                android.content.pm.PackageManager pm = getPackageManager();
+                label = pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)).toString();
+            } catch (android.content.pm.PackageManager.NameNotFoundException e) {
+                label = packageName;
+            }
+            appLabels.put(packageName, label);
+        }
+        return label;
     }
     
     private void sendNotification(NotificationData data) {
-        try {
-            // Send via broadcast to service (similar to widget commands)
-            android.content.Intent intent = new android.content.Intent("com.ddelpero.ridebridge.FORWARD_NOTIFICATION");
-            intent.putExtra("appPackage", data.appPackage);
-            intent.putExtra("appName", data.appName);
-            intent.putExtra("sender", data.sender);
-            intent.putExtra("message", data.message);
-            intent.putExtra("timestamp", data.timestamp);
-            sendBroadcast(intent);
-            
-            Log.d(TAG, "Notification forwarded: " + data.appName);
-        } catch (Exception e) {
-            Log.e(TAG, "Error sending notification: " + e.getMessage());
+        // Straight to the service, which owns the link
+        if (NotificationHandoff.getInstance().deliver(data)) {
+            Log.d(TAG, "Notification " + data.op + " handed to service: " + data.appName);
+        } else {
+            Log.d(TAG, "Service not running, notification " + data.op + " dropped: " + data.appName);
         }
     }
 }
@@ -0,0 +1,149 @@
+package com.ddelpero.ridebridge.source;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+
+import com.ddelpero.ridebridge.core.ContentHash;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the encoded (scaled, JPEG, base64) form of recent album art bitmaps so that
+ * play/pause/position syncs for the same track do not recompress the same cover.
+ *
+ * Entries are keyed by the bitmap's pixel content (dimensions plus a hash of the pixels)
+ * and the target size and quality. Bitmap identity is no use as a key: every
+ * getMetadata() call unparcels a new Bitmap, so the same cover never arrives as the same
+ * object twice. Hashing the pixels is far cheaper than compressing them again.
+ */
+public class AlbumArtEncodeCache {
+
+    private static final int MAX_ENTRIES = 4;
+
+    public static class Entry {
+        public final String base64;
+        public final int byteCount;
+        public final long hash; // ContentHash of the encoded bytes
+
+        Entry(String base64, int byteCount, long hash) {
+            this.base64 = base64;
+            this.byteCount = byteCount;
+            this.hash = hash;
+        }
+    }
+
+    private static class Key {
+        final int width;
+        final int height;
+        final long pixelHash;
+        final int targetSize;
+        final int quality;
+
+        Key(int width, int height, long pixelHash, int targetSize, int quality) {
+            this.width = width;
+            this.height = height;
+            this.pixelHash = pixelHash;
+            this.targetSize = targetSize;
+            this.quality = quality;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return width == other.width && height == other.height && pixelHash == other.pixelHash
+                && targetSize == other.targetSize && quality == other.quality;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = Long.hashCode(pixelHash);
+            h = 31 * h + width;
+            h = 31 * h + height;
+            h = 31 * h + targetSize;
+            return 31 * h + quality;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true);
+    private ByteBuffer pixels; // reused for hashing, guarded by this
+
+    private long hits = 0;
+    private long misses = 0;
+    private long encodeTimeMs = 0;
+
+    /**
+     * Return the encoded art for a bitmap, encoding it only on a miss
+     * @param targetSize longest edge in pixels; larger bitmaps are scaled down first
+     */
+    public synchronized Entry get(Bitmap art, int targetSize, int quality) {
+        Key key = new Key(art.getWidth(), art.getHeight(), hashPixels(art), targetSize, quality);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+
+        misses++;
+        long start = android.os.SystemClock.elapsedRealtime();
+        entry = encode(art, targetSize, quality);
+        encodeTimeMs += android.os.SystemClock.elapsedRealtime() - start;
+
+        entries.put(key, entry);
+        if (entries.size() > MAX_ENTRIES) {
+            Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return entry;
+    }
+
+    private long hashPixels(Bitmap art) {
+        int size = art.getByteCount();
+        if (pixels == null || pixels.capacity() < size) {
+            pixels = ByteBuffer.allocate(size);
+        }
+        pixels.clear();
+        art.copyPixelsToBuffer(pixels);
+        return ContentHash.of(pixels.array(), 0, pixels.position());
+    }
+
+    /**
+     * Encoded art by content hash, if it is still cached
+     */
+    public synchronized Entry findByHash(long hash) {
+        for (Entry entry : entries.values()) {
+            if (entry.hash == hash) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static Entry encode(Bitmap art, int targetSize, int quality) {
+        Bitmap scaled = art;
+        int longest = Math.max(art.getWidth(), art.getHeight());
+        if (longest > targetSize) {
+            float scale = (float) targetSize / longest;
+            scaled = Bitmap.createScaledBitmap(art,
+                Math.max(1, Math.round(art.getWidth() * scale)),
+                Math.max(1, Math.round(art.getHeight() * scale)), true);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        scaled.compress(Bitmap.CompressFormat.JPEG, quality, baos);
+        if (scaled != art) {
+            scaled.recycle();
+        }
+        byte[] bytes = baos.toByteArray();
+        return new Entry(Base64.encodeToString(bytes, Base64.NO_WRAP), bytes.length, ContentHash.of(bytes));
+    }
+
+    public synchronized String getStats() {
+        return "hits=" + hits + ", misses=" + misses + ", encodeTimeMs=" + encodeTimeMs;
+    }
+}
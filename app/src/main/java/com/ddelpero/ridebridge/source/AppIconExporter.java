@@ -0,0 +1,60 @@
+package com.ddelpero.ridebridge.source;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Answers the tablet's ICON command: the phone's launcher icon for a package, rendered at
+ * ICON_SIZE_PX and sent as a PNG in an "icon" frame. The tablet caches it on disk, so each
+ * package is normally asked for once. An empty "icon" means the phone has none either.
+ */
+public class AppIconExporter {
+
+    public static final int ICON_SIZE_PX = 96;
+
+    private final Context context;
+
+    public AppIconExporter(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Build the reply frame; blocking (PackageManager and PNG encoding), so not on the
+     * main thread
+     */
+    public JSONObject buildIconFrame(String appPackage) throws JSONException {
+        JSONObject frame = new JSONObject();
+        frame.put("type", "icon");
+        frame.put("package", appPackage);
+        frame.put("icon", encode(appPackage));
+        return frame;
+    }
+
+    private String encode(String appPackage) {
+        Drawable drawable;
+        try {
+            drawable = context.getPackageManager().getApplicationIcon(appPackage);
+        } catch (PackageManager.NameNotFoundException e) {
+            return "";
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(ICON_SIZE_PX, ICON_SIZE_PX, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, ICON_SIZE_PX, ICON_SIZE_PX);
+        drawable.draw(canvas);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP);
+    }
+}
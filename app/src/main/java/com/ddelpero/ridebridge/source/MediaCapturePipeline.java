@@ -0,0 +1,446 @@
+package com.ddelpero.ridebridge.source;
+
+import android.graphics.Bitmap;
+import android.media.MediaDescription;
+import android.media.session.MediaController;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.ddelpero.ridebridge.core.BluetoothManager;
+import com.ddelpero.ridebridge.core.ContentHash;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Phone-side media capture, run as fixed stages on a dedicated thread:
+ * capture a snapshot, encode (or look up) the art, serialize the frame, enqueue it,
+ * and finally queue low-priority prefetch frames for the upcoming queue items.
+ * Every stage is timed so the end-to-end cost of a sync is visible in the log.
+ */
+public class MediaCapturePipeline {
+
+    private static final String TAG = "RideBridge";
+    private static final int STATS_LOG_INTERVAL = 20;
+
+    public static final int ART_TARGET_SIZE = 512;
+    public static final int ART_JPEG_QUALITY = 70;
+
+    // Art hashes whose bytes have gone to the tablet; later frames send only the hash
+    private static final int MAX_SENT_ART = 256;
+
+    // Upcoming queue items pushed ahead of time, with small thumbnails
+    public static final int PREFETCH_COUNT = 3;
+    public static final int PREFETCH_ART_SIZE = 160;
+    public static final int PREFETCH_JPEG_QUALITY = 60;
+
+    public interface FrameSink {
+        void onFrame(JSONObject frame);
+
+        /**
+         * Speculative frame that may be delayed behind (or dropped for) regular frames;
+         * result is told, on any thread, whether it was written
+         */
+        void onPrefetchFrame(JSONObject frame, BluetoothManager.SendResultListener result);
+
+        void onNoMetadata();
+    }
+
+    /** Running count / total / max for one stage */
+    private static class StageTimer {
+        final String name;
+        long count;
+        long totalNanos;
+        long maxNanos;
+
+        StageTimer(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) maxNanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            long avgUs = count > 0 ? totalNanos / count / 1000 : 0;
+            return name + " avg=" + avgUs + "us max=" + (maxNanos / 1000) + "us";
+        }
+    }
+
+    private final HandlerThread thread = new HandlerThread("RideBridge-MediaCapture");
+    private final AlbumArtEncodeCache artEncodeCache = new AlbumArtEncodeCache();
+    private final AlbumArtEncodeCache thumbnailEncodeCache = new AlbumArtEncodeCache();
+
+    private final StageTimer captureTimer = new StageTimer("capture");
+    private final StageTimer artTimer = new StageTimer("art");
+    private final StageTimer serializeTimer = new StageTimer("serialize");
+    private final StageTimer enqueueTimer = new StageTimer("enqueue");
+    private final StageTimer totalTimer = new StageTimer("total");
+
+    private final PositionTracker positionTracker = new PositionTracker();
+    private MediaSnapshot lastCaptured;
+    private MediaSnapshot lastSent; // snapshot whose metadata the tablet has
+    private int lastQueueSize = -1;
+    private long lastQueueActiveId = MediaSession.QueueItem.UNKNOWN_ID;
+    private List<MediaSession.QueueItem> upcoming = new ArrayList<>();
+    // Queue items the tablet already has, by queue id -> title (ids can be reused by a new queue)
+    private final Map<Long, String> prefetched = new HashMap<>();
+    // Handed to the link but not yet reported written (or dropped)
+    private final Map<Long, String> prefetching = new HashMap<>();
+    private int prefetchEpoch = 0; // bumped by keyframes; older send results are ignored
+    private Handler handler;
+    private long prefetchCount = 0;
+    private final Map<Long, Boolean> sentArt = new LinkedHashMap<Long, Boolean>(MAX_SENT_ART, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_SENT_ART;
+        }
+    };
+    private long artBytesSent = 0;
+    private long artBytesSaved = 0;
+    private long skippedCount = 0;
+
+    // Per-stream sequence numbers, stream = frame type. The tablet drops a frame whose seq is
+    // not newer than the last one it applied on that stream.
+    private final Map<String, Integer> sequences = new HashMap<>();
+
+    /** Streams a keyframe re-baselines (also covers the phone restarting its counters) */
+    private static final String[] KEYFRAME_STREAMS = { "meta", "playback", "queue", "prefetch", "art" };
+
+    public void start() {
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public void quit() {
+        thread.quitSafely();
+        Log.d(TAG, "PIPELINE: " + getStats());
+    }
+
+    /**
+     * Looper of the pipeline thread; sync scheduling and media callbacks run here too
+     */
+    public Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    /**
+     * Run all stages for the given controller. Must be called on the pipeline thread.
+     *
+     * Each kind of change produces its own frame: "meta" (track text, duration, art),
+     * "playback" (state and position) and "queue". A keyframe is one "media" frame with
+     * everything in it.
+     * @param dirty MediaSyncScheduler.DIRTY_* flags of what was reported as changed
+     * @param keyframe first frame for a newly selected session
+     */
+    public void process(MediaController controller, int dirty, boolean keyframe, FrameSink sink) throws JSONException {
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        if (keyframe) {
+            dirty = MediaSyncScheduler.DIRTY_ALL;
+            lastSent = null;
+            lastQueueSize = -1;
+            prefetched.clear();
+            prefetching.clear();
+            prefetchEpoch++;
+            positionTracker.reset();
+        }
+
+        // Stage 1: capture
+        boolean readMetadata = (dirty & MediaSyncScheduler.DIRTY_METADATA) != 0;
+        MediaSnapshot snapshot = MediaSnapshot.capture(controller, lastCaptured, readMetadata);
+        lastCaptured = snapshot;
+        long captured = SystemClock.elapsedRealtimeNanos();
+        captureTimer.record(captured - start);
+
+        if (!snapshot.hasMetadata) {
+            sink.onNoMetadata();
+            return;
+        }
+
+        // Only send what changed: metadata when the track or art changed, position
+        // only on a discontinuity. Steady playback sends nothing at all, and a
+        // play/pause never touches the art.
+        boolean trackChanged = !snapshot.sameTrack(lastSent);
+        boolean artChanged = trackChanged || !snapshot.sameArt(lastSent);
+        boolean positionChanged = ((dirty & MediaSyncScheduler.DIRTY_PLAYBACK) != 0 || trackChanged)
+            && positionTracker.isDiscontinuity(snapshot, trackChanged);
+        // The active item moves on every track change even if the queue itself did not
+        boolean queueChanged = ((dirty & MediaSyncScheduler.DIRTY_QUEUE) != 0 || trackChanged)
+            && captureQueue(controller);
+        if (!artChanged && !positionChanged && !queueChanged) {
+            skippedCount++;
+            return;
+        }
+
+        // Stage 2: art
+        AlbumArtEncodeCache.Entry art = null;
+        if (artChanged && snapshot.art != null) {
+            art = artEncodeCache.get(snapshot.art, ART_TARGET_SIZE, ART_JPEG_QUALITY);
+        }
+        long encoded = SystemClock.elapsedRealtimeNanos();
+        artTimer.record(encoded - captured);
+
+        // Stage 3: serialize
+        JSONObject[] frames = new JSONObject[3];
+        int frameCount = 0;
+        if (keyframe) {
+            JSONObject json = newFrame("media", snapshot, true);
+            putMetadata(json, snapshot, art);
+            putPlayback(json, snapshot);
+            putQueue(json);
+            frames[frameCount++] = json;
+        } else {
+            // Metadata first, so the tablet has the new duration before the new position
+            if (artChanged) {
+                JSONObject json = newFrame("meta", snapshot, false);
+                if (trackChanged) {
+                    putMetadata(json, snapshot, art);
+                } else {
+                    putArt(json, art); // art arrived late for the same track
+                }
+                frames[frameCount++] = json;
+            }
+            if (positionChanged) {
+                JSONObject json = newFrame("playback", snapshot, false);
+                putPlayback(json, snapshot);
+                frames[frameCount++] = json;
+            }
+            if (queueChanged) {
+                JSONObject json = newFrame("queue", snapshot, false);
+                putQueue(json);
+                frames[frameCount++] = json;
+            }
+        }
+        if (artChanged) {
+            lastSent = snapshot;
+        }
+        if (positionChanged) {
+            positionTracker.markReported(snapshot);
+        }
+        long serialized = SystemClock.elapsedRealtimeNanos();
+        serializeTimer.record(serialized - encoded);
+
+        // Stage 4: enqueue
+        for (int i = 0; i < frameCount; i++) {
+            sink.onFrame(frames[i]);
+        }
+        long enqueued = SystemClock.elapsedRealtimeNanos();
+        enqueueTimer.record(enqueued - serialized);
+        totalTimer.record(enqueued - start);
+
+        // Stage 5: prefetch, behind everything above
+        if (queueChanged) {
+            prefetchUpcoming(sink);
+        }
+
+        if (totalTimer.count % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, "PIPELINE: " + getStats());
+        }
+    }
+
+    /**
+     * Push track text and a thumbnail for the next few queue items the tablet does not
+     * have yet, so it can show them the moment NEXT is pressed
+     */
+    private void prefetchUpcoming(FrameSink sink) throws JSONException {
+        for (MediaSession.QueueItem item : upcoming) {
+            MediaDescription description = item.getDescription();
+            String title = charSequenceToString(description.getTitle());
+            long queueId = item.getQueueId();
+            if (title == null || title.equals(prefetched.get(queueId)) || title.equals(prefetching.get(queueId))) {
+                continue;
+            }
+
+            String encodedImage = "";
+            Bitmap icon = description.getIconBitmap();
+            if (icon != null) {
+                encodedImage = thumbnailEncodeCache.get(icon, PREFETCH_ART_SIZE, PREFETCH_JPEG_QUALITY).base64;
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("type", "prefetch");
+            json.put("seq", nextSeq("prefetch"));
+            json.put("queueId", item.getQueueId());
+            json.put("track", title);
+            json.put("artist", charSequenceToString(description.getSubtitle()));
+            json.put("albumArt", encodedImage);
+            // Only counted as prefetched once written: the background queue may drop it
+            prefetching.put(queueId, title);
+            int epoch = prefetchEpoch;
+            sink.onPrefetchFrame(json, sent -> handler.post(() -> onPrefetchResult(epoch, queueId, title, sent)));
+        }
+    }
+
+    // Pipeline thread
+    private void onPrefetchResult(int epoch, long queueId, String title, boolean sent) {
+        if (epoch != prefetchEpoch) return;
+        if (title.equals(prefetching.get(queueId))) {
+            prefetching.remove(queueId);
+        }
+        if (sent) {
+            prefetched.put(queueId, title);
+            prefetchCount++;
+        }
+    }
+
+    /**
+     * Read the queue position and the items after it; returns whether they differ from
+     * what was last sent
+     */
+    private boolean captureQueue(MediaController controller) {
+        List<MediaSession.QueueItem> queue = controller.getQueue();
+        PlaybackState state = controller.getPlaybackState();
+        int size = queue != null ? queue.size() : 0;
+        long activeId = state != null ? state.getActiveQueueItemId() : MediaSession.QueueItem.UNKNOWN_ID;
+
+        List<MediaSession.QueueItem> next = new ArrayList<>(PREFETCH_COUNT);
+        for (int i = 0; i < size; i++) {
+            if (queue.get(i).getQueueId() == activeId) {
+                for (int j = i + 1; j < size && next.size() < PREFETCH_COUNT; j++) {
+                    next.add(queue.get(j));
+                }
+                break;
+            }
+        }
+
+        if (size == lastQueueSize && activeId == lastQueueActiveId && sameQueueIds(next, upcoming)) {
+            return false;
+        }
+        lastQueueSize = size;
+        lastQueueActiveId = activeId;
+        upcoming = next;
+        return true;
+    }
+
+    private static boolean sameQueueIds(List<MediaSession.QueueItem> a, List<MediaSession.QueueItem> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).getQueueId() != b.get(i).getQueueId()) return false;
+        }
+        return true;
+    }
+
+    private static String charSequenceToString(CharSequence text) {
+        return text != null ? text.toString() : null;
+    }
+
+    private JSONObject newFrame(String type, MediaSnapshot snapshot, boolean keyframe) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("type", type);
+        json.put("seq", nextSeq(type));
+        if (keyframe) {
+            json.put("keyframe", true);
+            json.put("source", snapshot.packageName);
+            // Baseline for every stream the keyframe covers: anything older still in
+            // flight on those streams is stale once this arrives
+            JSONObject baseline = new JSONObject();
+            for (String stream : KEYFRAME_STREAMS) {
+                baseline.put(stream, nextSeq(stream));
+            }
+            json.put("seqs", baseline);
+        }
+        return json;
+    }
+
+    private int nextSeq(String stream) {
+        Integer last = sequences.get(stream);
+        int seq = last != null ? last + 1 : 1;
+        sequences.put(stream, seq);
+        return seq;
+    }
+
+    private void putMetadata(JSONObject json, MediaSnapshot snapshot, AlbumArtEncodeCache.Entry art) throws JSONException {
+        json.put("artist", snapshot.artist);
+        json.put("track", snapshot.track);
+        putArt(json, art);
+        json.put("duration", snapshot.duration);
+    }
+
+    /**
+     * Art goes by content hash; the bytes are only included the first time a hash is
+     * sent. "albumArt":"" with no hash means the track has no art.
+     */
+    private void putArt(JSONObject json, AlbumArtEncodeCache.Entry art) throws JSONException {
+        if (art == null) {
+            json.put("albumArt", "");
+            return;
+        }
+        json.put("artHash", ContentHash.toHex(art.hash));
+        if (sentArt.containsKey(art.hash)) {
+            artBytesSaved += art.byteCount;
+            return;
+        }
+        json.put("albumArt", art.base64);
+        sentArt.put(art.hash, Boolean.TRUE);
+        artBytesSent += art.byteCount;
+    }
+
+    /**
+     * Send the bytes for art the tablet could not find in its cache. Must be called on
+     * the pipeline thread.
+     * @return false if the art is no longer cached here; the next metadata sync then
+     *         sends the current art in full
+     */
+    public boolean resendArt(long hash, FrameSink sink) throws JSONException {
+        AlbumArtEncodeCache.Entry art = artEncodeCache.findByHash(hash);
+        if (art == null) {
+            sentArt.remove(hash);
+            lastSent = null;
+            return false;
+        }
+        JSONObject json = new JSONObject();
+        json.put("type", "art");
+        json.put("seq", nextSeq("art"));
+        json.put("artHash", ContentHash.toHex(hash));
+        json.put("albumArt", art.base64);
+        sentArt.put(hash, Boolean.TRUE);
+        artBytesSent += art.byteCount;
+        sink.onFrame(json);
+        return true;
+    }
+
+    private static void putPlayback(JSONObject json, MediaSnapshot snapshot) throws JSONException {
+        // Extrapolation contract: position was valid at positionTime (phone wall clock)
+        // and advances at speed (0 while paused) until the next discontinuity
+        long age = SystemClock.elapsedRealtime() - snapshot.captureTime;
+        json.put("playing", snapshot.isPlaying);
+        json.put("position", PositionTracker.currentPosition(snapshot));
+        json.put("speed", PositionTracker.effectiveSpeed(snapshot));
+        json.put("positionTime", System.currentTimeMillis() - age);
+    }
+
+    private void putQueue(JSONObject json) throws JSONException {
+        json.put("queueLength", Math.max(0, lastQueueSize));
+        json.put("queueActiveId", lastQueueActiveId);
+        // Ids of the next items in play order; their details arrive as "prefetch" frames
+        JSONArray next = new JSONArray();
+        for (MediaSession.QueueItem item : upcoming) {
+            next.put(item.getQueueId());
+        }
+        json.put("upcoming", next);
+    }
+
+    public String getStats() {
+        return captureTimer + ", " + artTimer + ", " + serializeTimer + ", " + enqueueTimer
+            + ", " + totalTimer + " (frames=" + totalTimer.count + ", unchanged=" + skippedCount
+            + ", prefetched=" + prefetchCount + ", artBytesSent=" + artBytesSent
+            + ", artBytesSaved=" + artBytesSaved + ", art cache " + artEncodeCache.getStats()
+            + ", thumbnail cache " + thumbnailEncodeCache.getStats() + ")";
+    }
+}
@@ -0,0 +1,74 @@
+package com.ddelpero.ridebridge.source;
+
+import android.media.session.PlaybackState;
+
+/**
+ * Decides which of several active media sessions should be streamed to the tablet.
+ *
+ * Sessions are ranked by playback state first (playing beats buffering beats paused beats
+ * stopped) and by most recent activity second. The current session is kept unless another
+ * one outranks it on playback state, so two paused players cannot flap back and forth.
+ */
+public class MediaSessionSelector {
+
+    /** What the selector needs to know about each session */
+    public interface Candidate {
+        int getPlaybackStateCode();
+
+        long getLastActiveTime();
+    }
+
+    public static int stateRank(int state) {
+        switch (state) {
+            case PlaybackState.STATE_PLAYING:
+                return 4;
+            case PlaybackState.STATE_BUFFERING:
+            case PlaybackState.STATE_CONNECTING:
+            case PlaybackState.STATE_FAST_FORWARDING:
+            case PlaybackState.STATE_REWINDING:
+            case PlaybackState.STATE_SKIPPING_TO_NEXT:
+            case PlaybackState.STATE_SKIPPING_TO_PREVIOUS:
+            case PlaybackState.STATE_SKIPPING_TO_QUEUE_ITEM:
+                return 3;
+            case PlaybackState.STATE_PAUSED:
+                return 2;
+            case PlaybackState.STATE_STOPPED:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Pick the session to stream
+     * @param candidates active sessions in system order
+     * @param current the session streamed right now, or null
+     */
+    public static <T extends Candidate> T select(Iterable<T> candidates, T current) {
+        T best = null;
+        int bestRank = -1;
+        for (T candidate : candidates) {
+            int rank = stateRank(candidate.getPlaybackStateCode());
+            if (best == null || rank > bestRank
+                    || (rank == bestRank && candidate.getLastActiveTime() > best.getLastActiveTime())) {
+                best = candidate;
+                bestRank = rank;
+            }
+        }
+
+        if (current != null && best != null && best != current) {
+            boolean currentStillActive = false;
+            for (T candidate : candidates) {
+                if (candidate == current) {
+                    currentStillActive = true;
+                    break;
+                }
+            }
+            // Only leave a live session for one that is strictly more active
+            if (currentStillActive && stateRank(current.getPlaybackStateCode()) >= bestRank) {
+                return current;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,227 @@
+package com.ddelpero.ridebridge.source;
+
+import android.content.ComponentName;
+import android.media.MediaMetadata;
+import android.media.session.MediaController;
+import android.media.session.MediaSession;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the current media controllers cached instead of asking MediaSessionManager on every
+ * sync and command. Subscribes to active session changes once, attaches a callback once per
+ * session, and detaches it when the session goes away.
+ *
+ * Every active session is tracked; MediaSessionSelector picks the one that is streamed (the
+ * primary). Callbacks from the primary are forwarded to the caller's callback, callbacks from
+ * other sessions only update their ranking, and a change of primary is reported right away.
+ */
+public class MediaSessionTracker implements MediaSessionManager.OnActiveSessionsChangedListener {
+
+    private static final String TAG = "RideBridge";
+
+    public interface OnPrimaryChanged {
+        void onPrimaryChanged(MediaController primary);
+    }
+
+    /** One tracked session; also its own callback so we know which session fired */
+    private class Session extends MediaController.Callback implements MediaSessionSelector.Candidate {
+        final MediaController controller;
+        int stateCode;
+        long lastActiveTime;
+
+        Session(MediaController controller) {
+            this.controller = controller;
+            PlaybackState state = controller.getPlaybackState();
+            this.stateCode = state != null ? state.getState() : PlaybackState.STATE_NONE;
+            this.lastActiveTime = state != null ? state.getLastPositionUpdateTime() : 0;
+        }
+
+        @Override
+        public int getPlaybackStateCode() {
+            return stateCode;
+        }
+
+        @Override
+        public long getLastActiveTime() {
+            return lastActiveTime;
+        }
+
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            boolean switched;
+            synchronized (MediaSessionTracker.this) {
+                stateCode = state != null ? state.getState() : PlaybackState.STATE_NONE;
+                lastActiveTime = SystemClock.elapsedRealtime();
+                switched = reselect();
+            }
+            if (switched) {
+                notifyPrimaryChanged();
+            } else if (this == primary) {
+                callback.onPlaybackStateChanged(state);
+            }
+        }
+
+        @Override
+        public void onMetadataChanged(MediaMetadata metadata) {
+            if (this == primary) {
+                callback.onMetadataChanged(metadata);
+            }
+        }
+
+        @Override
+        public void onQueueChanged(List<MediaSession.QueueItem> queue) {
+            if (this == primary) {
+                callback.onQueueChanged(queue);
+            }
+        }
+    }
+
+    private final MediaSessionManager mediaSessionManager;
+    private final ComponentName listenerComponent;
+    private final MediaController.Callback callback;
+    private final Handler handler;
+    private OnPrimaryChanged primaryChangedListener;
+
+    private final Map<MediaSession.Token, Session> attached = new HashMap<>();
+    private List<Session> sessions = Collections.emptyList(); // system order
+    private volatile List<MediaController> controllers = Collections.emptyList();
+    private volatile Session primary;
+    private volatile MediaController.TransportControls primaryControls;
+    private boolean started = false;
+    private long switchCount = 0;
+
+    public MediaSessionTracker(MediaSessionManager mediaSessionManager, ComponentName listenerComponent,
+                               MediaController.Callback callback, Handler handler) {
+        this.mediaSessionManager = mediaSessionManager;
+        this.listenerComponent = listenerComponent;
+        this.callback = callback;
+        this.handler = handler;
+    }
+
+    public void setPrimaryChangedListener(OnPrimaryChanged listener) {
+        this.primaryChangedListener = listener;
+    }
+
+    /**
+     * Subscribe to session changes. Fails quietly (and can be retried) while the
+     * notification listener permission has not been granted.
+     * @return true once subscribed
+     */
+    public synchronized boolean start() {
+        if (started) return true;
+        try {
+            mediaSessionManager.addOnActiveSessionsChangedListener(this, listenerComponent, handler);
+            started = true;
+            Log.d(TAG, "SESSIONS: Subscribed to active session changes");
+            // The listener only fires on changes, so seed with the current sessions
+            onActiveSessionsChanged(mediaSessionManager.getActiveSessions(listenerComponent));
+        } catch (SecurityException e) {
+            Log.w(TAG, "SESSIONS: Not allowed to track sessions yet: " + e.getMessage());
+        }
+        return started;
+    }
+
+    public synchronized void stop() {
+        if (started) {
+            mediaSessionManager.removeOnActiveSessionsChangedListener(this);
+            started = false;
+        }
+        for (Session session : attached.values()) {
+            session.controller.unregisterCallback(session);
+        }
+        attached.clear();
+        sessions = Collections.emptyList();
+        controllers = Collections.emptyList();
+        primary = null;
+        primaryControls = null;
+        Log.d(TAG, "SESSIONS: Stopped tracking sessions (primary switches=" + switchCount + ")");
+    }
+
+    @Override
+    public void onActiveSessionsChanged(List<MediaController> active) {
+        boolean switched;
+        synchronized (this) {
+            Map<MediaSession.Token, Session> previous = new HashMap<>(attached);
+            List<Session> current = new ArrayList<>();
+            List<MediaController> currentControllers = new ArrayList<>();
+
+            if (active != null) {
+                for (MediaController controller : active) {
+                    MediaSession.Token token = controller.getSessionToken();
+                    Session session = previous.remove(token);
+                    if (session == null) {
+                        session = new Session(controller);
+                        controller.registerCallback(session, handler);
+                        attached.put(token, session);
+                        Log.d(TAG, "SESSIONS: Attached to " + controller.getPackageName());
+                    }
+                    // Keep the instance our callback is registered on
+                    current.add(session);
+                    currentControllers.add(session.controller);
+                }
+            }
+
+            for (Map.Entry<MediaSession.Token, Session> gone : previous.entrySet()) {
+                gone.getValue().controller.unregisterCallback(gone.getValue());
+                attached.remove(gone.getKey());
+                Log.d(TAG, "SESSIONS: Detached from " + gone.getValue().controller.getPackageName());
+            }
+
+            sessions = current;
+            controllers = Collections.unmodifiableList(currentControllers);
+            switched = reselect();
+        }
+
+        if (switched) {
+            notifyPrimaryChanged();
+        }
+    }
+
+    // Caller holds the lock. Returns true if the primary session changed.
+    private boolean reselect() {
+        Session selected = MediaSessionSelector.select(sessions, primary);
+        if (selected == primary) {
+            return false;
+        }
+        primary = selected;
+        primaryControls = selected != null ? selected.controller.getTransportControls() : null;
+        switchCount++;
+        Log.d(TAG, "SESSIONS: Streaming " + (selected != null ? selected.controller.getPackageName() : "nothing")
+            + " (" + sessions.size() + " active sessions)");
+        return true;
+    }
+
+    private void notifyPrimaryChanged() {
+        if (primaryChangedListener != null) {
+            Session current = primary;
+            primaryChangedListener.onPrimaryChanged(current != null ? current.controller : null);
+        }
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    public List<MediaController> getControllers() {
+        return controllers;
+    }
+
+    public MediaController getPrimaryController() {
+        Session current = primary;
+        return current != null ? current.controller : null;
+    }
+
+    public MediaController.TransportControls getTransportControls() {
+        return primaryControls;
+    }
+}
@@ -0,0 +1,115 @@
+package com.ddelpero.ridebridge.source;
+
+import android.graphics.Bitmap;
+import android.media.MediaMetadata;
+import android.media.session.MediaController;
+import android.media.session.PlaybackState;
+import android.os.SystemClock;
+
+import java.util.Objects;
+
+/**
+ * Immutable copy of everything a media frame needs, read from a MediaController in one go
+ * so the later pipeline stages never go back to the session.
+ */
+public class MediaSnapshot {
+
+    public final String packageName;
+    public final boolean hasMetadata;
+    public final String artist;
+    public final String track;
+    public final String album;
+    public final long duration;
+    public final Bitmap art;
+
+    public final int playbackState;
+    public final boolean isPlaying;
+    public final long position;
+    public final long positionUpdateTime; // elapsedRealtime when position was reported
+    public final float speed;
+
+    public final long captureTime; // elapsedRealtime
+
+    private MediaSnapshot(MediaController controller, MediaMetadata meta, PlaybackState state) {
+        this.packageName = controller.getPackageName();
+        this.hasMetadata = meta != null;
+        this.artist = meta != null ? meta.getString(MediaMetadata.METADATA_KEY_ARTIST) : null;
+        this.track = meta != null ? meta.getString(MediaMetadata.METADATA_KEY_TITLE) : null;
+        this.album = meta != null ? meta.getString(MediaMetadata.METADATA_KEY_ALBUM) : null;
+        this.duration = meta != null ? meta.getLong(MediaMetadata.METADATA_KEY_DURATION) : 0;
+        this.art = meta != null ? readArt(meta) : null;
+
+        this.playbackState = state != null ? state.getState() : PlaybackState.STATE_NONE;
+        this.isPlaying = playbackState == PlaybackState.STATE_PLAYING;
+        this.position = state != null ? state.getPosition() : 0;
+        this.positionUpdateTime = state != null ? state.getLastPositionUpdateTime() : 0;
+        this.speed = state != null ? state.getPlaybackSpeed() : 0f;
+
+        this.captureTime = SystemClock.elapsedRealtime();
+    }
+
+    /** Fresh playback state on top of previously captured metadata */
+    private MediaSnapshot(MediaSnapshot metadataFrom, PlaybackState state) {
+        this.packageName = metadataFrom.packageName;
+        this.hasMetadata = metadataFrom.hasMetadata;
+        this.artist = metadataFrom.artist;
+        this.track = metadataFrom.track;
+        this.album = metadataFrom.album;
+        this.duration = metadataFrom.duration;
+        this.art = metadataFrom.art;
+
+        this.playbackState = state != null ? state.getState() : PlaybackState.STATE_NONE;
+        this.isPlaying = playbackState == PlaybackState.STATE_PLAYING;
+        this.position = state != null ? state.getPosition() : 0;
+        this.positionUpdateTime = state != null ? state.getLastPositionUpdateTime() : 0;
+        this.speed = state != null ? state.getPlaybackSpeed() : 0f;
+
+        this.captureTime = SystemClock.elapsedRealtime();
+    }
+
+    public static MediaSnapshot capture(MediaController controller) {
+        return new MediaSnapshot(controller, controller.getMetadata(), controller.getPlaybackState());
+    }
+
+    /**
+     * Capture only what changed. When the metadata has not changed it is carried over from
+     * the previous snapshot of the same session, which skips the metadata IPC and the art
+     * bitmap unparcel entirely.
+     */
+    public static MediaSnapshot capture(MediaController controller, MediaSnapshot previous, boolean readMetadata) {
+        if (readMetadata || previous == null || !previous.packageName.equals(controller.getPackageName())) {
+            return capture(controller);
+        }
+        return new MediaSnapshot(previous, controller.getPlaybackState());
+    }
+
+    /**
+     * Same track (ignoring art and playback state)
+     */
+    public boolean sameTrack(MediaSnapshot other) {
+        return other != null
+            && Objects.equals(packageName, other.packageName)
+            && Objects.equals(artist, other.artist)
+            && Objects.equals(track, other.track)
+            && Objects.equals(album, other.album)
+            && duration == other.duration;
+    }
+
+    /**
+     * Same cover art. Every metadata read unparcels a new Bitmap, so compare pixels
+     * when the objects differ.
+     */
+    public boolean sameArt(MediaSnapshot other) {
+        if (other == null) return false;
+        if (art == other.art) return true;
+        return art != null && other.art != null && art.sameAs(other.art);
+    }
+
+    private static Bitmap readArt(MediaMetadata meta) {
+        Bitmap art = meta.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART);
+        if (art == null) {
+            art = meta.getBitmap(MediaMetadata.METADATA_KEY_ART);
+        }
+        return art;
+    }
+}
@@ -0,0 +1,123 @@
+package com.ddelpero.ridebridge.source;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Collapses bursts of sync triggers (media callbacks, SYNC_MEDIA broadcasts, UI requests)
+ * into a single sync that runs on the given background looper.
+ *
+ * The first trigger opens a window; triggers that land inside it are merged and the sync
+ * runs once when the window closes. A trigger that arrives while a sync is running opens
+ * a new window, so the last change is never lost.
+ *
+ * Each trigger names what changed (DIRTY_* flags); the flags are merged over the window and
+ * handed to the sync, so it only reads and sends the parts that actually changed.
+ */
+public class MediaSyncScheduler {
+
+    public static final long DEFAULT_WINDOW_MS = 200;
+
+    public static final int DIRTY_METADATA = 1;
+    public static final int DIRTY_PLAYBACK = 1 << 1;
+    public static final int DIRTY_QUEUE = 1 << 2;
+    public static final int DIRTY_ALL = DIRTY_METADATA | DIRTY_PLAYBACK | DIRTY_QUEUE;
+
+    public interface SyncTask {
+        /**
+         * @param dirty DIRTY_* flags of everything triggered since the last sync
+         */
+        void sync(int dirty);
+    }
+
+    private final Handler handler;
+    private final SyncTask syncTask;
+    private final long windowMs;
+
+    private boolean pending = false;
+    private long dueTime = 0; // uptimeMillis the pending sync is posted for
+    private int dirty = 0;
+    private long triggerCount = 0;
+    private long syncCount = 0;
+
+    private final Runnable runSync = new Runnable() {
+        @Override
+        public void run() {
+            int flags;
+            synchronized (MediaSyncScheduler.this) {
+                pending = false;
+                flags = dirty;
+                dirty = 0;
+                syncCount++;
+            }
+            syncTask.sync(flags);
+        }
+    };
+
+    public MediaSyncScheduler(Looper looper, SyncTask syncTask) {
+        this(looper, syncTask, DEFAULT_WINDOW_MS);
+    }
+
+    public MediaSyncScheduler(Looper looper, SyncTask syncTask, long windowMs) {
+        this.handler = new Handler(looper);
+        this.syncTask = syncTask;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Ask for a sync of everything; safe to call from any thread
+     */
+    public void requestSync() {
+        requestSync(DIRTY_ALL);
+    }
+
+    /**
+     * Ask for a sync of the given parts; safe to call from any thread
+     */
+    public void requestSync(int flags) {
+        requestSync(flags, windowMs);
+    }
+
+    /**
+     * Run a sync as soon as possible, folding in any pending window
+     */
+    public void requestImmediateSync(int flags) {
+        requestSync(flags, 0);
+    }
+
+    private synchronized void requestSync(int flags, long delayMs) {
+        triggerCount++;
+        dirty |= flags;
+        long due = SystemClock.uptimeMillis() + delayMs;
+        if (pending && due >= dueTime) {
+            return; // the pending sync picks these flags up
+        }
+        // Nothing pending, or this trigger needs to run sooner than the open window
+        handler.removeCallbacks(runSync);
+        pending = true;
+        dueTime = due;
+        handler.postAtTime(runSync, due);
+    }
+
+    /**
+     * Drop any sync that has not started yet
+     */
+    public synchronized void cancel() {
+        handler.removeCallbacks(runSync);
+        pending = false;
+        dirty = 0;
+    }
+
+    public synchronized long getTriggerCount() {
+        return triggerCount;
+    }
+
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    public synchronized String getStats() {
+        return "triggers=" + triggerCount + ", syncs=" + syncCount;
+    }
+}
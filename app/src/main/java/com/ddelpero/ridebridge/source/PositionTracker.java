@@ -0,0 +1,63 @@
+package com.ddelpero.ridebridge.source;
+
+/**
+ * Phone half of the position contract: position is only sent on a discontinuity, together
+ * with the effective speed and the time it was valid at, and the tablet extrapolates
+ * position + elapsed * speed in between (see MediaState.positionAt).
+ *
+ * A discontinuity is a track change, play/pause, a speed change, or the real position having
+ * drifted from what the tablet is extrapolating by more than DRIFT_THRESHOLD_MS (seeks).
+ */
+public class PositionTracker {
+
+    public static final long DRIFT_THRESHOLD_MS = 1000;
+
+    private boolean hasReport = false;
+    private long reportedPosition;
+    private long reportedAt;     // phone elapsedRealtime the reported position was valid at
+    private float reportedSpeed; // effective speed, 0 when not playing
+
+    public void reset() {
+        hasReport = false;
+    }
+
+    /**
+     * Whether the snapshot's position must be sent
+     * @param trackChanged the snapshot is for a different track than the last report
+     */
+    public boolean isDiscontinuity(MediaSnapshot snapshot, boolean trackChanged) {
+        if (!hasReport || trackChanged) return true;
+
+        float speed = effectiveSpeed(snapshot);
+        if (speed != reportedSpeed) return true; // includes play/pause
+
+        long expected = reportedPosition + (long) ((snapshot.captureTime - reportedAt) * reportedSpeed);
+        return Math.abs(currentPosition(snapshot) - expected) > DRIFT_THRESHOLD_MS;
+    }
+
+    public void markReported(MediaSnapshot snapshot) {
+        hasReport = true;
+        reportedPosition = currentPosition(snapshot);
+        reportedAt = snapshot.captureTime;
+        reportedSpeed = effectiveSpeed(snapshot);
+    }
+
+    /**
+     * Position extrapolated to the moment the snapshot was captured
+     */
+    public static long currentPosition(MediaSnapshot snapshot) {
+        long position = snapshot.position;
+        float speed = effectiveSpeed(snapshot);
+        if (speed > 0 && snapshot.positionUpdateTime > 0) {
+            position += (long) ((snapshot.captureTime - snapshot.positionUpdateTime) * speed);
+        }
+        if (snapshot.duration > 0 && position > snapshot.duration) {
+            position = snapshot.duration;
+        }
+        return Math.max(0, position);
+    }
+
+    public static float effectiveSpeed(MediaSnapshot snapshot) {
+        return snapshot.isPlaying ? snapshot.speed : 0f;
+    }
+}
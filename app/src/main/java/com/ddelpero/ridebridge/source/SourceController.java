@@ -5,20 +5,22 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
 import android.media.session.MediaSessionManager;
+import android.os.Handler;
 import android.media.session.MediaController;
-import android.media.MediaMetadata;
-import android.graphics.Bitmap;
-import android.util.Base64;
 import android.util.Log;
 import android.speech.RecognizerIntent;
 
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.util.List;
 
 import com.ddelpero.ridebridge.core.BluetoothManager;
+import com.ddelpero.ridebridge.core.CommandDispatcher;
+import com.ddelpero.ridebridge.core.ContentHash;
+import com.ddelpero.ridebridge.core.RemoteCommand;
 import com.ddelpero.ridebridge.core.RideBridgeService;
 import com.ddelpero.ridebridge.ui.NotificationReceiver;
 
@@ -28,11 +30,19 @@ public class SourceController {
     private final BluetoothManager bluetoothManager;
     private final RideBridgeService service;
     private final MediaSessionManager mediaSessionManager;
-    private OnSourceDataReady sourceDataListener;
+    private volatile OnSourceDataReady sourceDataListener;
     private OnRemoteCommandReceived remoteCommandListener;
     private MediaController.Callback mediaControllerCallback;
+    private MediaSessionTracker sessionTracker;
     private BroadcastReceiver syncMediaReceiver;
-    private int messageSequence = 0;
+    private final CommandDispatcher commandDispatcher;
+    private MediaCapturePipeline capturePipeline;
+    private MediaSyncScheduler syncScheduler;
+    private Handler pipelineHandler;
+    private AppIconExporter iconExporter; // pipeline thread
+    private volatile boolean keyframePending = true;
+    // Fresh connection: the tablet may have lost its state
+    private final Runnable sessionStartedListener = this::requestKeyframe;
 
     public interface OnSourceDataReady {
         void onMediaDataReady(String mediaJson);
@@ -47,6 +57,7 @@ public class SourceController {
         this.context = service;
         this.bluetoothManager = bluetoothManager;
         this.mediaSessionManager = (MediaSessionManager) context.getSystemService(Context.MEDIA_SESSION_SERVICE);
+        this.commandDispatcher = buildCommandDispatcher();
     }
 
     // Backward compatibility constructor for code that doesn't have service reference
@@ -55,6 +66,7 @@ public class SourceController {
         this.context = context;
         this.bluetoothManager = bluetoothManager;
         this.mediaSessionManager = (MediaSessionManager) context.getSystemService(Context.MEDIA_SESSION_SERVICE);
+        this.commandDispatcher = buildCommandDispatcher();
     }
 
     private void log(String message) {
@@ -78,22 +90,59 @@ public class SourceController {
         log("SOURCE: Starting source controller (phone/sender mode)...");
         bluetoothManager.setServiceActive(true);
 
-        // Register callback for playback state changes once
+        // All syncs run on the capture pipeline thread, never on the main thread,
+        // and bursts of triggers are merged
+        capturePipeline = new MediaCapturePipeline();
+        capturePipeline.start();
+        syncScheduler = new MediaSyncScheduler(capturePipeline.getLooper(), this::performSync);
+        pipelineHandler = new Handler(capturePipeline.getLooper());
+
+        // Metadata, playback state and queue are separate events, each syncing only its own
+        // part. The tracker forwards these for the primary session only.
         mediaControllerCallback = new MediaController.Callback() {
+            @Override
+            public void onMetadataChanged(MediaMetadata metadata) {
+                // Track changes go out without waiting for the debounce window
+                log("SOURCE: Metadata changed");
+                requestSync(MediaSyncScheduler.DIRTY_METADATA, true);
+            }
+
             @Override
             public void onPlaybackStateChanged(android.media.session.PlaybackState state) {
                 if (state != null) {
                     // This fires precisely when YT Music flips from 2 (Paused) to 3 (Playing)
                     log("SOURCE: Internal playback state updated: " + state.getState());
-                    syncMediaData();
+                    requestSync(MediaSyncScheduler.DIRTY_PLAYBACK, false);
                 }
             }
+
+            @Override
+            public void onQueueChanged(List<MediaSession.QueueItem> queue) {
+                log("SOURCE: Queue changed (" + (queue != null ? queue.size() : 0) + " items)");
+                requestSync(MediaSyncScheduler.DIRTY_QUEUE, false);
+            }
         };
 
+        // Track sessions through change notifications instead of querying on every sync/command;
+        // callbacks are delivered on the sync thread
+        sessionTracker = new MediaSessionTracker(mediaSessionManager,
+                new ComponentName(context, NotificationReceiver.class),
+                mediaControllerCallback, pipelineHandler);
+        // Streamed player changed: send one full frame for the new session right away
+        sessionTracker.setPrimaryChangedListener(primary -> requestKeyframe());
+        bluetoothManager.addSessionStartedListener(sessionStartedListener);
+        sessionTracker.start();
+
         // Register broadcast receiver for SYNC_MEDIA notifications
         syncMediaReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                // Only a fallback: once sessions are tracked, the controller callbacks
+                // report every change themselves
+                MediaSessionTracker tracker = sessionTracker;
+                if (tracker != null && tracker.isStarted()) {
+                    return;
+                }
                 log("SOURCE: SYNC_MEDIA broadcast received");
                 syncMediaData();
             }
@@ -110,8 +159,20 @@ public class SourceController {
     public void stop() {
         log("SOURCE: Stopping source controller...");
         bluetoothManager.setServiceActive(false);
+        bluetoothManager.removeSessionStartedListener(sessionStartedListener);
         unregisterMediaCallback();
 
+        if (syncScheduler != null) {
+            syncScheduler.cancel();
+            log("SOURCE: Sync scheduler stats: " + syncScheduler.getStats());
+            syncScheduler = null;
+        }
+        if (capturePipeline != null) {
+            capturePipeline.quit();
+            capturePipeline = null;
+            pipelineHandler = null;
+        }
+
         // Unregister broadcast receiver
         if (syncMediaReceiver != null) {
             try {
@@ -124,80 +185,58 @@ public class SourceController {
         }
     }
 
+    /**
+     * Request a full media sync. Triggers that arrive close together are merged into one
+     * sync, which runs on the sync thread; only what actually changed is sent.
+     */
     public void syncMediaData() {
+        requestSync(MediaSyncScheduler.DIRTY_ALL, false);
+    }
+
+    private void requestSync(int dirty, boolean immediate) {
+        MediaSyncScheduler scheduler = syncScheduler;
+        if (scheduler == null) {
+            log("SOURCE: syncMediaData ignored, source controller not started");
+            return;
+        }
+        if (immediate) {
+            scheduler.requestImmediateSync(dirty);
+        } else {
+            scheduler.requestSync(dirty);
+        }
+    }
+
+    /**
+     * Send full state (metadata and position) on the next sync, which runs immediately
+     */
+    private void requestKeyframe() {
+        keyframePending = true;
+        MediaSyncScheduler scheduler = syncScheduler;
+        if (scheduler != null) {
+            scheduler.requestImmediateSync(MediaSyncScheduler.DIRTY_ALL);
+        }
+    }
+
+    // Runs on the pipeline thread
+    private void performSync(int dirty) {
         log("SOURCE: syncMediaData execution started");
 
+        MediaSessionTracker tracker = sessionTracker;
+        if (tracker == null) return;
+
         try {
-            ComponentName cn = new ComponentName("com.ddelpero.ridebridge", "com.ddelpero.ridebridge.ui.NotificationReceiver");
-            List<MediaController> controllers = mediaSessionManager.getActiveSessions(cn);
-            log("SOURCE: Found " + controllers.size() + " media controllers");
-
-            if (controllers != null && !controllers.isEmpty()) {
-                log("SOURCE: Found " + controllers.size() + " active sessions");
-                MediaController player = controllers.get(0);
-                MediaMetadata meta = player.getMetadata();
-                String encodedImage = "";
-
-                // Unregister and re-register to prevent duplicate callbacks
-                player.unregisterCallback(mediaControllerCallback);
-                player.registerCallback(mediaControllerCallback);
-
-                // Get Playback State (Playing vs Paused)
-                android.media.session.PlaybackState state = player.getPlaybackState();
-                boolean isPlaying = (state != null && state.getState() == android.media.session.PlaybackState.STATE_PLAYING);
-
-                if (meta != null) {
-                    // Try to get the bitmap
-                    Bitmap art = meta.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART);
-                    if (art == null) {
-                        art = meta.getBitmap(MediaMetadata.METADATA_KEY_ART);
-                    }
-
-                    if (art != null) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        art.compress(Bitmap.CompressFormat.JPEG, 70, baos);
-                        byte[] b = baos.toByteArray();
-                        encodedImage = Base64.encodeToString(b, Base64.NO_WRAP);
-                        log("SOURCE: Album art encoded successfully");
-                    }
-
-                    long position = (state != null) ? state.getPosition() : 0;
-                    long duration = (meta != null) ? meta.getLong(MediaMetadata.METADATA_KEY_DURATION) : 0;
-
-                    JSONObject json = new JSONObject();
-                    json.put("type", "media");
-                    json.put("seq", ++messageSequence);
-                    json.put("artist", meta.getString(MediaMetadata.METADATA_KEY_ARTIST));
-                    json.put("track", meta.getString(MediaMetadata.METADATA_KEY_TITLE));
-                    json.put("playing", isPlaying);
-                    json.put("albumArt", encodedImage);
-                    json.put("position", position);
-                    json.put("duration", duration);
-                    json.put("speed", (state != null) ? state.getPlaybackSpeed() : 0f);
-
-                    String payload = json.toString();
-
-                    log("SOURCE: About to send message via BT");
-                    bluetoothManager.sendMessage(payload, this::handleRemoteControl);
-                    log("SOURCE: sendMessage returned");
-
-                    log("SOURCE: About to call sourceDataListener, listener is " + (sourceDataListener == null ? "NULL" : "SET"));
-                    if (sourceDataListener != null) {
-                        log("SOURCE: Calling listener now...");
-                        log("SOURCE: About to invoke listener.onMediaDataReady with payload length=" + payload.length());
-                        sourceDataListener.onMediaDataReady(payload);
-                        log("SOURCE: Listener.onMediaDataReady() returned successfully");
-                        log("SOURCE: Listener call completed");
-                    } else {
-                        log("SOURCE: sourceDataListener is null!");
-                    }
-
-                } else {
-                    log("SOURCE: Player found, but no metadata (is music playing?)");
-                    if (sourceDataListener != null) {
-                        sourceDataListener.onMediaDataReady("");
-                    }
-                }
+            // Retry the subscription if the listener permission was granted after start()
+            if (!tracker.isStarted() && !tracker.start()) {
+                log("SOURCE: Session tracking unavailable - NotificationReceiver may not be enabled.");
+                return;
+            }
+
+            MediaController player = tracker.getPrimaryController();
+            if (player != null) {
+                log("SOURCE: Found " + tracker.getControllers().size() + " active sessions");
+                boolean keyframe = keyframePending;
+                keyframePending = false;
+                capturePipeline.process(player, dirty, keyframe, mediaFrameSink);
             } else {
                 log("SOURCE: No active media sessions found.");
             }
@@ -209,6 +248,70 @@ public class SourceController {
         }
     }
 
+    // Runs on the pipeline thread
+    private void resendArt(long hash) {
+        MediaCapturePipeline pipeline = capturePipeline;
+        if (pipeline == null) return;
+        try {
+            if (pipeline.resendArt(hash, mediaFrameSink)) {
+                log("SOURCE: Resent album art " + ContentHash.toHex(hash));
+            } else {
+                log("SOURCE: Album art " + ContentHash.toHex(hash) + " no longer cached, resending metadata");
+                requestSync(MediaSyncScheduler.DIRTY_METADATA, true);
+            }
+        } catch (Exception e) {
+            Log.e("RideBridge", "SOURCE: Art resend error: " + e.getMessage());
+        }
+    }
+
+    // Runs on the pipeline thread
+    private void sendAppIcon(String appPackage) {
+        try {
+            if (iconExporter == null) {
+                iconExporter = new AppIconExporter(context);
+            }
+            JSONObject frame = iconExporter.buildIconFrame(appPackage);
+            log("SOURCE: Sending icon for " + appPackage
+                    + (frame.optString("icon").isEmpty() ? " (none)" : ""));
+            bluetoothManager.sendBackgroundFrame(frame);
+        } catch (Exception e) {
+            Log.e("RideBridge", "SOURCE: Icon export error: " + e.getMessage());
+        }
+    }
+
+    private final MediaCapturePipeline.FrameSink mediaFrameSink = new MediaCapturePipeline.FrameSink() {
+        @Override
+        public void onFrame(JSONObject json) {
+            // Read once: the listener is set from the main thread, this runs on the pipeline thread
+            OnSourceDataReady listener = sourceDataListener;
+            // Serialize for the listener before the frame is handed to the send thread
+            String payload = listener != null ? json.toString() : null;
+
+            log("SOURCE: About to send message via BT");
+            bluetoothManager.sendFrame(json, SourceController.this::handleRemoteControl);
+
+            if (listener != null) {
+                log("SOURCE: About to invoke listener.onMediaDataReady with payload length=" + payload.length());
+                listener.onMediaDataReady(payload);
+            }
+        }
+
+        @Override
+        public void onPrefetchFrame(JSONObject json, BluetoothManager.SendResultListener result) {
+            log("SOURCE: Queueing prefetch for queue item " + json.optLong("queueId"));
+            bluetoothManager.sendBackgroundFrame(json, result);
+        }
+
+        @Override
+        public void onNoMetadata() {
+            log("SOURCE: Player found, but no metadata (is music playing?)");
+            OnSourceDataReady listener = sourceDataListener;
+            if (listener != null) {
+                listener.onMediaDataReady("");
+            }
+        }
+    };
+
     private void handleRemoteControl(String command) {
         log("SOURCE: Received remote command: " + command);
 
@@ -216,72 +319,99 @@ public class SourceController {
             remoteCommandListener.onCommandReceived(command);
         }
 
-        // Execute the command on the media controller
-        try {
-            log("SOURCE: Looking for active media sessions...");
-            ComponentName cn = new ComponentName(context.getPackageName(), "com.ddelpero.ridebridge.ui.NotificationReceiver");
-            List<MediaController> controllers = mediaSessionManager.getActiveSessions(cn);
-
-            if (controllers != null && !controllers.isEmpty()) {
-                log("SOURCE: Found " + controllers.size() + " active media sessions");
-
-                // Use the first available (active) media controller
-                MediaController controller = controllers.get(0);
-                MediaController.TransportControls controls = controller.getTransportControls();
-                log("SOURCE: Got transport controls, executing: " + command);
-
-                if (command.startsWith("SEEK:")) {
-                    long seekPos = Long.parseLong(command.split(":")[1]);
-                    log("SOURCE: Seeking to " + seekPos);
-                    controls.seekTo(seekPos);
-                } else {
-                    switch (command) {
-                        case "PLAY":
-                            log("SOURCE: Calling play()");
-                            controls.play();
-                            break;
-                        case "PAUSE":
-                            log("SOURCE: Calling pause()");
-                            controls.pause();
-                            break;
-                        case "NEXT":
-                            log("SOURCE: Calling skipToNext()");
-                            controls.skipToNext();
-                            break;
-                        case "PREV":
-                            log("SOURCE: Calling skipToPrevious()");
-                            controls.skipToPrevious();
-                            break;
-                        case "VOICE":
-                            Intent assistantIntent = new Intent(Intent.ACTION_VOICE_COMMAND);
-                            assistantIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                            context.startActivity(assistantIntent);
-                            log("SOURCE: Launching voice assistant");
-                            break;
-                    }
+        if (!commandDispatcher.dispatch(command)) {
+            log("SOURCE: Unknown or malformed command: " + command);
+        }
+    }
+
+    private CommandDispatcher buildCommandDispatcher() {
+        return new CommandDispatcher()
+            .register(RemoteCommand.OP_PLAY, cmd -> {
+                MediaController.TransportControls controls = resolveTransportControls();
+                if (controls != null) {
+                    log("SOURCE: Calling play()");
+                    controls.play();
                 }
-            } else {
-                log("SOURCE: No active media sessions found! NotificationReceiver may not be enabled.");
-            }
-        } catch (Exception e) {
-            log("SOURCE: Control Error: " + e.getMessage());
-            e.printStackTrace();
+            })
+            .register(RemoteCommand.OP_PAUSE, cmd -> {
+                MediaController.TransportControls controls = resolveTransportControls();
+                if (controls != null) {
+                    log("SOURCE: Calling pause()");
+                    controls.pause();
+                }
+            })
+            .register(RemoteCommand.OP_NEXT, cmd -> {
+                MediaController.TransportControls controls = resolveTransportControls();
+                if (controls != null) {
+                    log("SOURCE: Calling skipToNext()");
+                    controls.skipToNext();
+                }
+            })
+            .register(RemoteCommand.OP_PREV, cmd -> {
+                MediaController.TransportControls controls = resolveTransportControls();
+                if (controls != null) {
+                    log("SOURCE: Calling skipToPrevious()");
+                    controls.skipToPrevious();
+                }
+            })
+            .register(RemoteCommand.OP_SEEK, cmd -> {
+                MediaController.TransportControls controls = resolveTransportControls();
+                if (controls != null) {
+                    log("SOURCE: Seeking to " + cmd.arg);
+                    controls.seekTo(cmd.arg);
+                }
+            })
+            .register(RemoteCommand.OP_VOICE, cmd -> {
+                try {
+                    Intent assistantIntent = new Intent(Intent.ACTION_VOICE_COMMAND);
+                    assistantIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    context.startActivity(assistantIntent);
+                    log("SOURCE: Launching voice assistant");
+                } catch (Exception e) {
+                    log("SOURCE: Control Error: " + e.getMessage());
+                }
+            })
+            .register(RemoteCommand.OP_ART_MISS, cmd -> {
+                long hash = cmd.arg; // cmd is reused by the dispatcher, copy before posting
+                Handler handler = pipelineHandler;
+                if (handler != null) {
+                    handler.post(() -> resendArt(hash));
+                }
+            })
+            .register(RemoteCommand.OP_ICON, cmd -> {
+                String appPackage = cmd.argText(); // copied out of the reused command
+                Handler handler = pipelineHandler;
+                if (handler != null) {
+                    handler.post(() -> sendAppIcon(appPackage));
+                }
+            })
+            .register(RemoteCommand.OP_RESYNC, cmd -> {
+                log("SOURCE: Tablet requested string table resync");
+                bluetoothManager.resetOutgoingStrings();
+                requestKeyframe();
+            });
+    }
+
+    private MediaController.TransportControls resolveTransportControls() {
+        // Cached by the session tracker, so no IPC on the command path
+        MediaController.TransportControls controls =
+                sessionTracker != null ? sessionTracker.getTransportControls() : null;
+        if (controls == null) {
+            log("SOURCE: No active media sessions found! NotificationReceiver may not be enabled.");
         }
+        return controls;
     }
 
     private void unregisterMediaCallback() {
-        // Called during stop - unregister callback to clean up
-        if (mediaControllerCallback != null) {
+        // Called during stop - detach callbacks from every tracked session
+        if (sessionTracker != null) {
             try {
-                ComponentName cn = new ComponentName("com.ddelpero.ridebridge", "com.ddelpero.ridebridge.ui.NotificationReceiver");
-                List<MediaController> controllers = mediaSessionManager.getActiveSessions(cn);
-                if (controllers != null && !controllers.isEmpty()) {
-                    controllers.get(0).unregisterCallback(mediaControllerCallback);
-                    Log.d("RideBridge", "SOURCE: Unregistered callback from media controller");
-                }
+                sessionTracker.stop();
+                Log.d("RideBridge", "SOURCE: Unregistered callback from media controllers");
             } catch (Exception e) {
                 Log.w("RideBridge", "SOURCE: Error unregistering callback: " + e.getMessage());
             }
+            sessionTracker = null;
         }
     }
 }
@@ -19,18 +19,17 @@ import android.content.IntentFilter;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.SystemClock;
 import android.widget.SeekBar;
 
-import java.util.Locale;
 
 import com.ddelpero.ridebridge.R;
 import com.ddelpero.ridebridge.core.BluetoothManager;
 import com.ddelpero.ridebridge.core.RideBridgeService;
 import com.ddelpero.ridebridge.display.DisplayController;
-import com.ddelpero.ridebridge.notifications.NotificationOverlay;
+import com.ddelpero.ridebridge.display.MediaState;
+import com.ddelpero.ridebridge.display.MediaStateStore;
+import com.ddelpero.ridebridge.notifications.NotificationData;
+import com.ddelpero.ridebridge.notifications.NotificationPresenter;
 import com.ddelpero.ridebridge.source.SourceController;
 
 
@@ -73,13 +72,14 @@ public class MainActivity extends AppCompatActivity {
 
     private boolean isCurrentlyPlaying = false; // Track state for the toggle
 
-    private long lastPosition = 0;
-    private long totalDuration = 0;
-    private float playbackSpeed = 0;
-    private long lastUpdateTime = 0;
+    private ProgressRenderer progressRenderer; // tablet mode only
+    private NotificationPresenter notificationPresenter;
+    private boolean connectedShown = false;
+
+    // Store callbacks arrive on the receiver thread; only the changed views are touched
+    private final MediaStateStore.Listener mediaStateListener = (state, changes) ->
+        runOnUiThread(() -> updateDisplayUI(state, changes));
 
-    // Create a handler to "tick" the seekbar
-    private final Handler progressHandler = new Handler(Looper.getMainLooper());
 
     private void saveRoleSettings() {
         SharedPreferences prefs = getSharedPreferences("RideBridgePrefs", MODE_PRIVATE);
@@ -97,12 +97,10 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onReceive(Context context, android.content.Intent intent) {
             android.util.Log.d("RideBridge", "MAIN: Received broadcast, triggering source sync...");
-            // Add a tiny delay (200ms) to let the Android System update the MediaSession
-            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                if (sourceController != null) {
-                    sourceController.syncMediaData();
-                }
-            }, 200);
+            // The sync scheduler's window already gives the MediaSession time to update
+            if (sourceController != null) {
+                sourceController.syncMediaData();
+            }
         }
     };
 
@@ -280,20 +278,18 @@ public class MainActivity extends AppCompatActivity {
         // Wait a moment for service connection, then set up UI listeners
         new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
             if (displayController != null) {
-                // Set up display controller listener for updating UI
-                displayController.setDisplayDataListener(mediaData -> {
-                    runOnUiThread(() -> {
-                        updateDisplayUI(mediaData);
-                    });
-                });
-                
                 // Set up notification listener to display incoming notifications
-                displayController.setNotificationListener(notification -> {
-                    runOnUiThread(() -> {
-                        // Create and show notification overlay
-                        NotificationOverlay overlay = new NotificationOverlay(MainActivity.this);
-                        overlay.showNotification(notification);
-                    });
+                displayController.setNotificationListener(new DisplayController.OnNotificationReceived() {
+                    @Override
+                    public void onNotificationReceived(NotificationData notification) {
+                        // Queued, collapsed per key or sender and shown on one reused overlay
+                        runOnUiThread(() -> notificationPresenter.enqueue(notification));
+                    }
+                    
+                    @Override
+                    public void onNotificationRemoved(String key) {
+                        runOnUiThread(() -> notificationPresenter.remove(key));
+                    }
                 });
                 
                 android.util.Log.d("RideBridge", "MAIN: DisplayController listeners attached");
@@ -303,29 +299,42 @@ public class MainActivity extends AppCompatActivity {
         statusLabel.setText("Status: Online (Listening...)");
         logView.setText("Waiting for data from Phone...");
 
+        if (notificationPresenter == null) {
+            notificationPresenter = new NotificationPresenter(this);
+        }
+
         SeekBar seekBar = findViewById(R.id.mediaSeekBar);
+        if (progressRenderer == null) {
+            progressRenderer = new ProgressRenderer("MAIN", seekBar,
+                findViewById(R.id.txtCurrentTime), findViewById(R.id.txtTotalTime));
+        }
         seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (fromUser) {
-                    updateTimeLabels(progress, totalDuration);
+                    progressRenderer.showUserPosition(progress);
                 }
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
-                // Optional: Pause the local ticker while dragging
+                // Pause the progress display while dragging
+                progressRenderer.setUserSeeking(true);
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                progressRenderer.setUserSeeking(false);
                 int progress = seekBar.getProgress();
                 android.util.Log.d("RideBridge", "MAIN: User seeked to " + progress);
                 displayController.sendSeekCommand(progress);
             }
         });
 
-        progressHandler.post(progressRunnable);
+        // Media state does not need the service; the current snapshot is replayed at once
+        MediaStateStore.getInstance().subscribe(mediaStateListener);
+
+        progressRenderer.start();
         // Socket server now starts in RideBridgeService, not here
     }
 
@@ -339,13 +348,13 @@ public class MainActivity extends AppCompatActivity {
         logView.setText("RideBridgeService is managing phone mode...");
     }
 
-    private void updateDisplayUI(DisplayController.MediaData mediaData) {
-        android.util.Log.d("RideBridge", "MAIN: Updating display UI with media data");
+    private void updateDisplayUI(MediaState mediaData, int changes) {
+        android.util.Log.d("RideBridge", "MAIN: Updating display UI, changes=0x" + Integer.toHexString(changes));
         
         isCurrentlyPlaying = mediaData.isPlaying;
 
         // 1. Update the Play/Pause Icon
-        if (roleSwitch.isChecked()) {
+        if ((changes & MediaStateStore.CHANGED_PLAYING) != 0 && roleSwitch.isChecked()) {
             ImageButton btnPlayPause = findViewById(R.id.btnPlayPause);
             if (isCurrentlyPlaying) {
                 btnPlayPause.setImageResource(android.R.drawable.ic_media_pause);
@@ -355,77 +364,50 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // 2. Update Album Art
-        if (mediaData.albumArt != null) {
+        if ((changes & MediaStateStore.CHANGED_ART) != 0) {
             ImageView imgArt = findViewById(R.id.imgAlbumArt);
-            imgArt.setImageBitmap(mediaData.albumArt);
-        } else {
-            ImageView imgArt = findViewById(R.id.imgAlbumArt);
-            imgArt.setImageResource(android.R.drawable.ic_dialog_info);
-        }
-
-        // 3. Update Seekbar Data
-        updateSeekBarData(mediaData.position, mediaData.duration, mediaData.playbackSpeed);
-
-        // 4. Update Text Labels
-        statusLabel.setText("Status: Online (Connected)");
-        logView.setText(mediaData.track + "\n" + mediaData.artist);
-    }
-
-    private final Runnable progressRunnable = new Runnable() {
-        @Override
-        public void run() {
-            // 1. Calculate the current position
-            long currentPos;
-            if (playbackSpeed > 0 && totalDuration > 0) {
-                // It's playing: calculate movement based on time elapsed
-                long timeDelta = SystemClock.elapsedRealtime() - lastUpdateTime;
-                currentPos = lastPosition + (long) (timeDelta * playbackSpeed);
-                if (currentPos > totalDuration) currentPos = totalDuration;
+            if (mediaData.albumArt != null) {
+                imgArt.setImageBitmap(mediaData.albumArt);
             } else {
-                // It's paused: stay exactly where the Phone last told us
-                currentPos = lastPosition;
-            }
-
-            // 2. ALWAYS update the UI with the result
-            SeekBar seekBar = findViewById(R.id.mediaSeekBar);
-            if (seekBar != null) {
-                seekBar.setProgress((int) currentPos);
-                updateTimeLabels(currentPos, totalDuration);
+                imgArt.setImageResource(android.R.drawable.ic_dialog_info);
             }
-
-            progressHandler.postDelayed(this, 500);
         }
-    };
 
-    // Call this when JSON is received
-    private void updateSeekBarData(long pos, long dur, float speed) {
-        this.lastPosition = pos;
-        this.totalDuration = dur;
-        this.playbackSpeed = speed;
-        this.lastUpdateTime = SystemClock.elapsedRealtime();
+        // 3. Seekbar and times are drawn by progressRenderer
 
-        SeekBar seekBar = findViewById(R.id.mediaSeekBar);
-        seekBar.setMax((int) dur);
-        seekBar.setProgress((int) pos);
+        // 4. Update Text Labels
+        if (!connectedShown) {
+            statusLabel.setText("Status: Online (Connected)");
+            connectedShown = true;
+        }
+        if ((changes & (MediaStateStore.CHANGED_TRACK | MediaStateStore.CHANGED_ARTIST)) != 0) {
+            logView.setText(mediaData.track + "\n" + mediaData.artist);
+        }
     }
 
-    private void updateTimeLabels(long currentMs, long totalMs) {
-        TextView txtCurrent = findViewById(R.id.txtCurrentTime);
-        TextView txtTotal = findViewById(R.id.txtTotalTime);
-
-        txtCurrent.setText(formatTime(currentMs));
-        txtTotal.setText(formatTime(totalMs));
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (progressRenderer != null) {
+            progressRenderer.start();
+        }
     }
 
-    private String formatTime(long millis) {
-        int seconds = (int) (millis / 1000) % 60;
-        int minutes = (int) ((millis / (1000 * 60)) % 60);
-        return String.format(Locale.getDefault(), "%d:%02d", minutes, seconds);
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (progressRenderer != null) {
+            progressRenderer.stop();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        MediaStateStore.getInstance().unsubscribe(mediaStateListener);
+        if (notificationPresenter != null) {
+            notificationPresenter.clear();
+        }
         // Stop listening when the app is closed
         try {
             unregisterReceiver(mediaSyncReceiver);
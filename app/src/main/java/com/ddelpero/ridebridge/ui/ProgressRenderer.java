@@ -0,0 +1,148 @@
+package com.ddelpero.ridebridge.ui;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import android.widget.SeekBar;
+import android.widget.TextView;
+
+import com.ddelpero.ridebridge.display.PositionEngine;
+
+/**
+ * Draws the seek bar and time labels of a visible activity. Position ticks from
+ * PositionEngine are applied on the next display frame (several in one frame collapse into
+ * one), and views are only touched when the displayed second or the duration changed.
+ * Formatted times are cached, so a steady second costs no allocation.
+ *
+ * start() and stop() follow the activity's visibility; stopped, the renderer holds no
+ * callbacks and the engine stops ticking for it. Main thread only.
+ */
+public class ProgressRenderer implements PositionEngine.Listener, Choreographer.FrameCallback {
+
+    private static final String TAG = "RideBridge";
+    private static final int MAX_CACHED_SECONDS = 3 * 60 * 60;
+    private static final String[] timeCache = new String[MAX_CACHED_SECONDS + 1];
+
+    private final String name;
+    private final SeekBar seekBar;
+    private final TextView currentTime;
+    private final TextView totalTime;
+
+    private boolean started = false;
+    private boolean framePending = false;
+    private boolean userSeeking = false;
+    private long position = 0;
+    private long duration = 0;
+    private long shownSecond = -1;
+    private long shownDuration = -1;
+
+    // Main-thread wakeups while started: engine ticks received and display frames used
+    private long startedAt = 0;
+    private long activeMs = 0;
+    private long ticks = 0;
+    private long frames = 0;
+    private long redraws = 0;
+
+    /**
+     * @param name used in the stats log
+     */
+    public ProgressRenderer(String name, SeekBar seekBar, TextView currentTime, TextView totalTime) {
+        this.name = name;
+        this.seekBar = seekBar;
+        this.currentTime = currentTime;
+        this.totalTime = totalTime;
+    }
+
+    public void start() {
+        if (started) return;
+        started = true;
+        startedAt = SystemClock.elapsedRealtime();
+        PositionEngine.getInstance().subscribe(this);
+    }
+
+    public void stop() {
+        if (!started) return;
+        started = false;
+        PositionEngine.getInstance().unsubscribe(this);
+        Choreographer.getInstance().removeFrameCallback(this);
+        framePending = false;
+        activeMs += SystemClock.elapsedRealtime() - startedAt;
+        Log.d(TAG, "UI: " + name + " progress " + getStats());
+    }
+
+    /**
+     * While the user drags the seek bar it shows their position, not playback's
+     */
+    public void setUserSeeking(boolean seeking) {
+        userSeeking = seeking;
+        if (!seeking) {
+            shownSecond = -1; // redraw from playback on the next tick
+        }
+    }
+
+    /**
+     * Show a position picked by the user while dragging
+     */
+    public void showUserPosition(long positionMs) {
+        currentTime.setText(formatTime(positionMs));
+    }
+
+    @Override
+    public void onPositionTick(long position, long duration) {
+        ticks++;
+        this.position = position;
+        this.duration = duration;
+        if (!framePending) {
+            framePending = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        framePending = false;
+        frames++;
+        if (userSeeking) return;
+
+        if (duration != shownDuration) {
+            seekBar.setMax((int) duration);
+            totalTime.setText(formatTime(duration));
+            shownDuration = duration;
+            shownSecond = -1;
+        }
+        long second = position / 1000;
+        if (second != shownSecond) {
+            seekBar.setProgress((int) position);
+            currentTime.setText(formatTime(position));
+            shownSecond = second;
+            redraws++;
+        }
+    }
+
+    /**
+     * "m:ss", cached per whole second
+     */
+    static String formatTime(long millis) {
+        int seconds = (int) Math.max(0, millis / 1000);
+        if (seconds <= MAX_CACHED_SECONDS) {
+            String cached = timeCache[seconds];
+            if (cached == null) {
+                cached = buildTime(seconds);
+                timeCache[seconds] = cached;
+            }
+            return cached;
+        }
+        return buildTime(seconds);
+    }
+
+    private static String buildTime(int seconds) {
+        int secs = seconds % 60;
+        return new StringBuilder(8).append(seconds / 60).append(secs < 10 ? ":0" : ":").append(secs).toString();
+    }
+
+    public String getStats() {
+        long perMinute = activeMs > 0 ? (ticks + frames) * 60000 / activeMs : 0;
+        return "ticks=" + ticks + ", frames=" + frames + ", redraws=" + redraws
+            + ", wakeupsPerMin=" + perMinute + " over " + (activeMs / 1000) + "s";
+    }
+}
@@ -34,6 +34,7 @@ import androidx.core.content.ContextCompat;
 import com.ddelpero.ridebridge.R;
 import com.ddelpero.ridebridge.core.RideBridgeService;
 import com.ddelpero.ridebridge.core.EmulatorDetector;
+import com.ddelpero.ridebridge.display.MediaStateStore;
 import android.widget.Spinner;
 import android.widget.ArrayAdapter;
 import android.bluetooth.BluetoothAdapter;
@@ -53,6 +54,11 @@ public class SettingsActivity extends AppCompatActivity {
     private View statusIndicator;
     private TextView roleLabelText;
     private TextView currentTrackLabel;
+    private final MediaStateStore.Listener mediaStateListener = (state, changes) -> {
+        if ((changes & (MediaStateStore.CHANGED_TRACK | MediaStateStore.CHANGED_ARTIST)) != 0) {
+            runOnUiThread(() -> currentTrackLabel.setText(state.artist + " - " + state.track));
+        }
+    };
     private ScrollView logScrollView;
     private LinearLayout notificationPreferencesSection;
     private LinearLayout notificationAppsList;
@@ -207,7 +213,7 @@ public class SettingsActivity extends AppCompatActivity {
                     testNotif.put("message", "This is a test notification");
                     testNotif.put("timestamp", System.currentTimeMillis());
 
-                    rideBridgeService.getBluetoothManager().sendMessage(testNotif.toString(), null);
+                    rideBridgeService.getBluetoothManager().sendFrame(testNotif, null);
                     Log.d(TAG, "SETTINGS: Test notification sent to tablet");
                 } catch (Exception e) {
                     Log.e(TAG, "SETTINGS: Error sending test notification: " + e.getMessage());
@@ -392,20 +398,14 @@ public class SettingsActivity extends AppCompatActivity {
             }
         });
 
-        // Observe media state
-        rideBridgeService.getMediaStateLiveData().observe(this, new Observer<RideBridgeService.MediaState>() {
-            @Override
-            public void onChanged(RideBridgeService.MediaState mediaState) {
-                if (mediaState != null) {
-                    currentTrackLabel.setText(mediaState.artist + " - " + mediaState.track);
-                }
-            }
-        });
+        // Media state: only the track label is shown here
+        MediaStateStore.getInstance().subscribe(mediaStateListener);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        MediaStateStore.getInstance().unsubscribe(mediaStateListener);
 
         if (isBound) {
             unbindService(serviceConnection);
@@ -1,7 +1,6 @@
 package com.ddelpero.ridebridge.ui;
 
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.lifecycle.Observer;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -10,9 +9,7 @@ import android.content.ServiceConnection;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.util.Base64;
 import android.util.Log;
 import android.widget.ImageButton;
@@ -22,8 +19,8 @@ import android.widget.TextView;
 
 import com.ddelpero.ridebridge.R;
 import com.ddelpero.ridebridge.core.RideBridgeService;
-
-import java.util.Locale;
+import com.ddelpero.ridebridge.display.MediaState;
+import com.ddelpero.ridebridge.display.MediaStateStore;
 
 public class TabletWidgetActivity extends AppCompatActivity {
     
@@ -45,11 +42,12 @@ public class TabletWidgetActivity extends AppCompatActivity {
     private RideBridgeService rideBridgeService;
     private boolean isBound = false;
     private boolean isPlaying = false;
-    private long totalDuration = 0;
     
-    // Progress update
-    private Handler progressHandler = new Handler(Looper.getMainLooper());
-    private Runnable progressRunnable;
+    private final MediaStateStore.Listener mediaStateListener = (state, changes) ->
+        runOnUiThread(() -> applyMediaState(state, changes));
+    
+    // Seek bar and times, drawn while the activity is in the foreground
+    private ProgressRenderer progressRenderer;
     
     private ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
@@ -58,9 +56,6 @@ public class TabletWidgetActivity extends AppCompatActivity {
             RideBridgeService.LocalBinder binder = (RideBridgeService.LocalBinder) service;
             rideBridgeService = binder.getService();
             isBound = true;
-            
-            // Observe service state
-            observeServiceState();
         }
         
         @Override
@@ -88,22 +83,25 @@ public class TabletWidgetActivity extends AppCompatActivity {
         btnPrev = findViewById(R.id.btnPrev);
         btnNext = findViewById(R.id.btnNext);
         btnSettings = findViewById(R.id.btnSettings);
+        progressRenderer = new ProgressRenderer("TABLET_WIDGET", mediaSeekBar, txtCurrentTime, txtTotalTime);
         
         // Set up seek bar listener
         mediaSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (fromUser) {
-                    updateTimeLabels(progress, totalDuration);
+                    progressRenderer.showUserPosition(progress);
                 }
             }
             
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
+                progressRenderer.setUserSeeking(true);
             }
             
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                progressRenderer.setUserSeeking(false);
                 int progress = seekBar.getProgress();
                 Log.d(TAG, "TABLET_WIDGET: User seeked to " + progress);
                 if (isBound && rideBridgeService != null) {
@@ -139,98 +137,65 @@ public class TabletWidgetActivity extends AppCompatActivity {
             startActivity(intent);
         });
         
-        // Set up progress ticker
-        progressRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (isPlaying) {
-                    int currentPosition = mediaSeekBar.getProgress();
-                    updateTimeLabels(currentPosition, totalDuration);
-                    mediaSeekBar.setProgress(currentPosition + 1000); // Increment by 1 second
-                }
-                progressHandler.postDelayed(this, 1000);
-            }
-        };
-        
         // Bind to service
         Intent serviceIntent = new Intent(this, RideBridgeService.class);
         bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE);
         startService(serviceIntent);
+        
+        MediaStateStore.getInstance().subscribe(mediaStateListener);
     }
     
-    private void observeServiceState() {
-        if (rideBridgeService == null) return;
+    private void applyMediaState(MediaState mediaState, int changes) {
+        Log.d(TAG, "TABLET_WIDGET: Media state updated, changes=0x" + Integer.toHexString(changes));
         
-        // Observe media state
-        rideBridgeService.getMediaStateLiveData().observe(this, new Observer<RideBridgeService.MediaState>() {
-            @Override
-            public void onChanged(RideBridgeService.MediaState mediaState) {
-                if (mediaState != null) {
-                    Log.d(TAG, "TABLET_WIDGET: Media state updated");
-                    
-                    txtTrackName.setText(mediaState.track);
-                    txtArtistName.setText(mediaState.artist);
-                    
-                    if (mediaState.albumArt != null) {
-                        imgAlbumArt.setImageBitmap(mediaState.albumArt);
-                    }
-                    
-                    totalDuration = mediaState.duration;
-                    mediaSeekBar.setMax((int) totalDuration);
-                    mediaSeekBar.setProgress((int) mediaState.position);
-                    
-                    isPlaying = mediaState.isPlaying;
-                    if (isPlaying) {
-                        btnPlayPause.setImageResource(android.R.drawable.ic_media_pause);
-                        progressHandler.post(progressRunnable);
-                    } else {
-                        btnPlayPause.setImageResource(android.R.drawable.ic_media_play);
-                        progressHandler.removeCallbacks(progressRunnable);
-                    }
-                    
-                    updateTimeLabels((int) mediaState.position, totalDuration);
-                }
+        if ((changes & MediaStateStore.CHANGED_TRACK) != 0) {
+            txtTrackName.setText(mediaState.track);
+        }
+        if ((changes & MediaStateStore.CHANGED_ARTIST) != 0) {
+            txtArtistName.setText(mediaState.artist);
+        }
+        if ((changes & MediaStateStore.CHANGED_ART) != 0) {
+            if (mediaState.albumArt != null) {
+                imgAlbumArt.setImageBitmap(mediaState.albumArt);
+            } else {
+                // Track without art: don't leave the previous cover up
+                imgAlbumArt.setImageResource(android.R.drawable.ic_dialog_info);
             }
-        });
-    }
-    
-    private void updateTimeLabels(int currentMs, long totalMs) {
-        txtCurrentTime.setText(formatTime(currentMs));
-        txtTotalTime.setText(formatTime((int) totalMs));
-    }
-    
-    private String formatTime(long ms) {
-        int seconds = (int) (ms / 1000);
-        int minutes = seconds / 60;
-        seconds = seconds % 60;
-        return String.format(Locale.US, "%d:%02d", minutes, seconds);
+        }
+        
+        if ((changes & MediaStateStore.CHANGED_PLAYING) != 0) {
+            isPlaying = mediaState.isPlaying;
+            if (isPlaying) {
+                btnPlayPause.setImageResource(android.R.drawable.ic_media_pause);
+            } else {
+                btnPlayPause.setImageResource(android.R.drawable.ic_media_play);
+            }
+        }
     }
     
     @Override
     protected void onResume() {
         super.onResume();
-        if (isPlaying) {
-            progressHandler.post(progressRunnable);
-        }
+        progressRenderer.start();
     }
     
     @Override
     protected void onPause() {
         super.onPause();
-        progressHandler.removeCallbacks(progressRunnable);
+        progressRenderer.stop();
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
         
+        MediaStateStore.getInstance().unsubscribe(mediaStateListener);
+        
         if (isBound) {
             unbindService(serviceConnection);
             isBound = false;
         }
         
-        progressHandler.removeCallbacks(progressRunnable);
-        
         Log.d(TAG, "TABLET_WIDGET: Activity destroyed");
     }
 }
@@ -0,0 +1,83 @@
+package com.ddelpero.ridebridge.widget;
+
+import android.graphics.Bitmap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.ddelpero.ridebridge.core.ContentHash;
+import com.ddelpero.ridebridge.display.MediaState;
+
+/**
+ * Widget-sized copies of album art, cached per art hash. The widget only needs a small
+ * cover, and everything in a RemoteViews update is copied through binder to the launcher,
+ * so the full decoded bitmap is never sent.
+ */
+class WidgetArtCache {
+
+    private static final int MAX_ENTRIES = 4;
+
+    private final int viewSize;
+    private final LinkedHashMap<String, Bitmap> variants = new LinkedHashMap<String, Bitmap>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param viewSize edge of the widget's art view in pixels
+     */
+    WidgetArtCache(int viewSize) {
+        this.viewSize = viewSize;
+    }
+
+    /**
+     * Art for the widget, no larger than the view and no more than byteBudget bytes of pixels
+     */
+    Bitmap get(MediaState mediaData, int byteBudget) {
+        Bitmap source = mediaData.albumArt;
+        if (source == null || source.isRecycled()) return null;
+
+        // Art without a hash (prefetch thumbnails) is keyed by the bitmap and its pixels' generation
+        String key = mediaData.artHash != ContentHash.NONE
+            ? ContentHash.toHex(mediaData.artHash)
+            : System.identityHashCode(source) + ":" + source.getGenerationId();
+        Bitmap variant = variants.get(key);
+        if (variant != null && variant.getAllocationByteCount() <= byteBudget) {
+            hits++;
+            return variant;
+        }
+
+        misses++;
+        variant = scale(source, byteBudget);
+        variants.put(key, variant);
+        return variant;
+    }
+
+    private Bitmap scale(Bitmap source, int byteBudget) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        // The view crops to fill, so the shorter edge decides; never scale up
+        float scale = Math.min(1f, (float) viewSize / Math.min(width, height));
+        int bytesPerPixel = source.getConfig() == Bitmap.Config.RGB_565 ? 2 : 4;
+        float pixels = width * scale * height * scale;
+        if (pixels * bytesPerPixel > byteBudget) {
+            scale *= (float) Math.sqrt(byteBudget / (pixels * bytesPerPixel));
+        }
+
+        int scaledWidth = Math.max(1, (int) (width * scale));
+        int scaledHeight = Math.max(1, (int) (height * scale));
+        if (scaledWidth == width && scaledHeight == height) {
+            return source.copy(source.getConfig(), false);
+        }
+        return Bitmap.createScaledBitmap(source, scaledWidth, scaledHeight, true);
+    }
+
+    String getStats() {
+        return "variants=" + variants.size() + ", hits=" + hits + ", misses=" + misses;
+    }
+}
@@ -0,0 +1,340 @@
+package com.ddelpero.ridebridge.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import com.ddelpero.ridebridge.R;
+import com.ddelpero.ridebridge.display.MediaState;
+import com.ddelpero.ridebridge.display.MediaStateStore;
+import com.ddelpero.ridebridge.display.PositionEngine;
+
+/**
+ * Pushes media state to the home-screen widget with as little launcher traffic as possible.
+ * Subscribed to MediaStateStore while the tablet side runs; the store's change mask decides
+ * which fields are recomputed at all. While widgets are placed and the screen is on it also
+ * follows PositionEngine, so the time and progress advance once per displayed second during
+ * playback; with the screen off nobody sees them, so the launcher is left alone.
+ *
+ * Remembers what was last pushed and sends only the fields that changed through
+ * partiallyUpdateAppWidget; the art bitmap and the play/pause PendingIntent only go out when
+ * they change. Art is a copy scaled to the widget (see WidgetArtCache), and every update's
+ * parcel size is measured against PARCEL_BUDGET_BYTES. Updates are capped at one per
+ * MIN_UPDATE_INTERVAL_MS; requests in between are coalesced and the latest state is pushed
+ * when the interval ends.
+ *
+ * All pushes happen on the main thread.
+ */
+public class WidgetRenderer implements MediaStateStore.Listener, PositionEngine.Listener {
+
+    private static final String TAG = "RideBridge_Widget";
+    public static final long MIN_UPDATE_INTERVAL_MS = 500;
+    private static final int STATS_LOG_INTERVAL = 50;
+
+    // Binder transactions are capped at 1MB shared by the whole process, so each update
+    // (art included) is kept well below that
+    public static final int PARCEL_BUDGET_BYTES = 200 * 1024;
+    private static final int ART_BUDGET_BYTES = 160 * 1024;
+    private static final int MIN_ART_BUDGET_BYTES = 32 * 1024;
+
+    private static WidgetRenderer instance;
+
+    private final Context context;
+    private final AppWidgetManager appWidgetManager;
+    private final PowerManager powerManager;
+    private final ComponentName componentName;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final WidgetArtCache artVariants;
+
+    // Pending request, guarded by this
+    private MediaState pending;
+    private int pendingChanges = 0;
+    private MediaState lastRendered;
+    private boolean flushScheduled = false;
+    private boolean fullUpdateNeeded = true;
+    private boolean attached = false; // main thread
+
+    // Screen on/off decides whether position ticks are followed; delivered on the main thread
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onWidgetsChanged();
+        }
+    };
+
+    // Last pushed state, main thread only
+    private String pushedTrack;
+    private String pushedArtist;
+    private String pushedCurrentTime;
+    private String pushedTotalTime;
+    private int pushedProgress = -1;
+    private boolean pushedPlaying;
+    private Bitmap pushedArt;
+    private long lastPushTime = 0;
+
+    private long fullUpdates = 0;
+    private long partialUpdates = 0;
+    private long unchanged = 0;
+    private long coalesced = 0;
+    private long parcelCount = 0;
+    private long totalParcelBytes = 0;
+    private long maxParcelBytes = 0;
+
+    public static synchronized WidgetRenderer getInstance(Context context) {
+        if (instance == null) {
+            instance = new WidgetRenderer(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private WidgetRenderer(Context context) {
+        this.context = context;
+        this.appWidgetManager = AppWidgetManager.getInstance(context);
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.componentName = new ComponentName(context, RideBridgeWidgetProvider.class);
+        this.artVariants = new WidgetArtCache(
+            context.getResources().getDimensionPixelSize(R.dimen.widget_album_art_size));
+    }
+
+    /**
+     * Start following media state (tablet mode started); main thread
+     */
+    public void attach() {
+        if (!attached) {
+            IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+            context.registerReceiver(screenReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        }
+        attached = true;
+        MediaStateStore.getInstance().subscribe(this);
+        onWidgetsChanged();
+    }
+
+    public void detach() {
+        if (attached) {
+            context.unregisterReceiver(screenReceiver);
+        }
+        attached = false;
+        MediaStateStore.getInstance().unsubscribe(this);
+        PositionEngine.getInstance().unsubscribe(this);
+    }
+
+    /**
+     * Widgets were placed or removed, or the screen turned on or off; position ticks are
+     * only wanted while a widget exists and can be seen
+     */
+    public void onWidgetsChanged() {
+        if (attached && powerManager.isInteractive()
+                && appWidgetManager.getAppWidgetIds(componentName).length > 0) {
+            PositionEngine.getInstance().subscribe(this);
+        } else {
+            PositionEngine.getInstance().unsubscribe(this);
+        }
+    }
+
+    @Override
+    public void onMediaStateChanged(MediaState state, int changes) {
+        render(state, changes);
+    }
+
+    @Override
+    public void onPositionTick(long position, long duration) {
+        MediaState last;
+        synchronized (this) {
+            last = lastRendered;
+        }
+        if (last != null) {
+            render(last, 0); // flush picks up the current position
+        }
+    }
+
+    /**
+     * Request a widget update; safe to call from any thread
+     * @param changes MediaStateStore.CHANGED_* bits since the previous request
+     */
+    public void render(MediaState mediaData, int changes) {
+        synchronized (this) {
+            if (pending != null) {
+                coalesced++;
+            }
+            pending = mediaData;
+            pendingChanges |= changes;
+            lastRendered = mediaData;
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        long wait = lastPushTime + MIN_UPDATE_INTERVAL_MS - SystemClock.uptimeMillis();
+        handler.postDelayed(this::flush, Math.max(0, wait));
+    }
+
+    /**
+     * The launcher's views were replaced (e.g. by onUpdate): push everything again,
+     * starting with the last known state if there is one
+     */
+    public void invalidate() {
+        MediaState last;
+        synchronized (this) {
+            fullUpdateNeeded = true;
+            last = lastRendered;
+        }
+        if (last != null) {
+            render(last, MediaStateStore.CHANGED_ALL);
+        }
+    }
+
+    // Main thread
+    private void flush() {
+        MediaState mediaData;
+        int changes;
+        boolean full;
+        synchronized (this) {
+            mediaData = pending;
+            changes = pendingChanges;
+            pending = null;
+            pendingChanges = 0;
+            flushScheduled = false;
+            full = fullUpdateNeeded;
+            fullUpdateNeeded = false;
+        }
+        if (mediaData == null) return;
+
+        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
+        if (appWidgetIds.length == 0) return;
+        lastPushTime = SystemClock.uptimeMillis();
+
+        long position = PositionEngine.getInstance().currentPosition();
+        String track = mediaData.track != null ? mediaData.track : "";
+        String artist = mediaData.artist != null ? mediaData.artist : "";
+        String currentTime = RideBridgeWidgetProvider.formatTime(position);
+        String totalTime = RideBridgeWidgetProvider.formatTime(mediaData.duration);
+        // CRITICAL: only compute progress if duration is valid
+        int progress = 0;
+        if (mediaData.duration > 0) {
+            progress = Math.max(0, Math.min(100, (int) ((position * 100) / mediaData.duration)));
+        }
+        // Art is only looked up (and possibly rescaled) when it changed
+        boolean artDirty = full || (changes & MediaStateStore.CHANGED_ART) != 0;
+        Bitmap art = artDirty ? artVariants.get(mediaData, ART_BUDGET_BYTES) : pushedArt;
+
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_ridebridge);
+        int actions = 0;
+
+        if (full || !track.equals(pushedTrack)) {
+            views.setTextViewText(R.id.widget_track, track);
+            actions++;
+        }
+        if (full || !artist.equals(pushedArtist)) {
+            views.setTextViewText(R.id.widget_artist, artist);
+            actions++;
+        }
+        if (full || !currentTime.equals(pushedCurrentTime)) {
+            views.setTextViewText(R.id.widget_current_time, currentTime);
+            actions++;
+        }
+        if (full || !totalTime.equals(pushedTotalTime)) {
+            views.setTextViewText(R.id.widget_total_time, totalTime);
+            actions++;
+        }
+        if (full || progress != pushedProgress) {
+            views.setProgressBar(R.id.widget_progress, 100, progress, false);
+            actions++;
+        }
+        if (full || mediaData.isPlaying != pushedPlaying) {
+            // Toggle icon and command based on playing state
+            int playButtonRes = mediaData.isPlaying ? android.R.drawable.ic_media_pause : android.R.drawable.ic_media_play;
+            views.setImageViewResource(R.id.widget_play_pause, playButtonRes);
+            views.setOnClickPendingIntent(R.id.widget_play_pause,
+                RideBridgeWidgetProvider.getPendingIntent(context, mediaData.isPlaying ? "PAUSE" : "PLAY"));
+            actions++;
+        }
+        if (full) {
+            RideBridgeWidgetProvider.updateConnectionStatusIndicator(context, views);
+            RideBridgeWidgetProvider.setStaticButtons(context, views);
+        }
+
+        // Art goes last so an oversized update can be rebuilt with smaller art
+        boolean artChanged = (full && art != null) || art != pushedArt;
+        if (artChanged) {
+            int size = parcelSize(views);
+            if (art != null && size + art.getAllocationByteCount() > PARCEL_BUDGET_BYTES) {
+                // Whatever else is in this update leaves less room for the art
+                art = artVariants.get(mediaData, Math.max(MIN_ART_BUDGET_BYTES, PARCEL_BUDGET_BYTES - size));
+            }
+            if (art != null) {
+                views.setImageViewBitmap(R.id.widget_album_art, art);
+            } else {
+                views.setImageViewResource(R.id.widget_album_art, 0);
+            }
+            actions++;
+        }
+
+        // What the launcher will actually receive
+        int parcelBytes = parcelSize(views);
+        recordParcel(parcelBytes);
+        if (parcelBytes > PARCEL_BUDGET_BYTES) {
+            Log.w(TAG, "Widget update over budget: " + parcelBytes + " bytes");
+        }
+
+        if (full) {
+            appWidgetManager.updateAppWidget(appWidgetIds, views);
+            fullUpdates++;
+        } else if (actions > 0) {
+            appWidgetManager.partiallyUpdateAppWidget(appWidgetIds, views);
+            partialUpdates++;
+        } else {
+            unchanged++;
+        }
+
+        pushedTrack = track;
+        pushedArtist = artist;
+        pushedCurrentTime = currentTime;
+        pushedTotalTime = totalTime;
+        pushedProgress = progress;
+        pushedPlaying = mediaData.isPlaying;
+        pushedArt = art;
+
+        if ((fullUpdates + partialUpdates + unchanged) % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, "Widget renderer: " + getStats());
+        }
+    }
+
+    /**
+     * Serialized size of an update. Bitmaps may travel out of line (ashmem), so the art's
+     * pixel size is budgeted separately as well.
+     */
+    private static int parcelSize(RemoteViews views) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            views.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private synchronized void recordParcel(int bytes) {
+        parcelCount++;
+        totalParcelBytes += bytes;
+        if (bytes > maxParcelBytes) maxParcelBytes = bytes;
+    }
+
+    public synchronized String getStats() {
+        long avgParcel = parcelCount > 0 ? totalParcelBytes / parcelCount : 0;
+        return "full=" + fullUpdates + ", partial=" + partialUpdates + ", unchanged=" + unchanged
+            + ", coalesced=" + coalesced + ", parcelAvg=" + avgParcel + "B, parcelMax=" + maxParcelBytes
+            + "B, art " + artVariants.getStats();
+    }
+}